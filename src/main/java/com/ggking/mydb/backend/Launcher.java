@@ -1,12 +1,14 @@
 package com.ggking.mydb.backend;
 
 import com.ggking.mydb.backend.dm.DataManager;
+import com.ggking.mydb.backend.dm.DataManagerOptions;
 import com.ggking.mydb.backend.server.Server;
 import com.ggking.mydb.backend.tbm.TableManager;
 import com.ggking.mydb.backend.tm.TransactionManager;
 import com.ggking.mydb.backend.tm.TransactionManagerImpl;
 import com.ggking.mydb.common.Error;
 import com.ggking.mydb.backend.utils.Panic;
+import com.ggking.mydb.backend.utils.Parser;
 import com.ggking.mydb.backend.vm.VersionManager;
 import com.ggking.mydb.backend.vm.VersionManagerImpl;
 import org.apache.commons.cli.CommandLine;
@@ -28,64 +30,101 @@ public class Launcher {
         options.addOption("open", true, "-open DBPath");
         options.addOption("create", true, "-create DBPath");
         options.addOption("mem", true, "-mem 64MB");
+        options.addOption("policy", true, "-policy clock|lru|2q|lru2|tinylfu");
+        options.addOption("mmap", false, "-mmap");
+        options.addOption("readahead", true, "-readahead 16");
+        options.addOption("extent", true, "-extent 4MB");
+        options.addOption("pagesize", true, "-pagesize 16KB");
+        options.addOption("affinity", false, "-affinity");
+        options.addOption("compress", false, "-compress");
+        options.addOption("segment", true, "-segment 1GB");
+        options.addOption("format", true, "-format slotted|legacy");
         CommandLineParser parser = new DefaultParser();
         CommandLine cmd = parser.parse(options, args);
 
         if (cmd.hasOption("open")){
             openDB(cmd.getOptionValue("open"),
-            parseMem(cmd.getOptionValue("mem")));
+            parseMem(cmd.getOptionValue("mem")), parseOptions(cmd));
             return;
         }
         if (cmd.hasOption("create")) {
-            createDB(cmd.getOptionValue("create"));
+            createDB(cmd.getOptionValue("create"), parseOptions(cmd));
             return;
         }
         System.out.println("Usage: launcher (open|create) DBPath");
     }
 
+    private static DataManagerOptions parseOptions(CommandLine cmd) {
+        DataManagerOptions dmOptions = new DataManagerOptions();
+        if (cmd.hasOption("policy")) {
+            dmOptions.policy = cmd.getOptionValue("policy");
+        }
+        dmOptions.mmap = cmd.hasOption("mmap");
+        if (cmd.hasOption("readahead")) {
+            dmOptions.readAhead = parseReadAhead(cmd.getOptionValue("readahead"));
+        }
+        if (cmd.hasOption("extent")) {
+            dmOptions.extentSize = parseMem(cmd.getOptionValue("extent"));
+        }
+        dmOptions.insertAffinity = cmd.hasOption("affinity");
+        dmOptions.compress = cmd.hasOption("compress");
+        if (cmd.hasOption("pagesize")) {
+            dmOptions.pageSize = (int) parseMem(cmd.getOptionValue("pagesize"));
+        }
+        if (cmd.hasOption("segment")) {
+            dmOptions.segmentSize = parseMem(cmd.getOptionValue("segment"));
+        }
+        if (cmd.hasOption("format")) {
+            dmOptions.format = cmd.getOptionValue("format");
+        }
+        return dmOptions;
+    }
+
+    //预读页数, 0表示关闭预读
+    private static int parseReadAhead(String str) {
+        try {
+            int pages = Integer.parseInt(str);
+            if (pages >= 0) {
+                return pages;
+            }
+        } catch (NumberFormatException ignored) {
+        }
+        System.out.println("Usage: -readahead pages, pages >= 0");
+        Panic.panic(Error.InvalidReadAheadException);
+        return 0;
+    }
+
     private static long parseMem(String memStr) {
         if (memStr == null || "".equals(memStr)) {
             return DEFAULT_MEM;
         }
-        // 如果内存大小的字符串长度小于2，那么抛出异常
-        if (memStr.length() < 2) {
-            Panic.panic(Error.InvalidMemException);
-        }
-        // 获取内存大小的单位，即字符串的后两个字符
-        String unit = memStr.substring(memStr.length() - 2);
-        // 获取内存大小的数值部分，即字符串的前部分，并转换为数字
-        long memNum = Long.parseLong(memStr.substring(0, memStr.length() - 2));
-        // 根据内存单位，计算并返回最终的内存大小
-        switch (unit) {
-            case "KB":
-                return memNum * KB;
-            case "MB":
-                return memNum * MB;
-            case "GB":
-                return memNum * GB;
-            // 如果内存单位不是KB、MB或GB，那么抛出异常
-            default:
-                Panic.panic(Error.InvalidMemException);
+        try {
+            return Parser.parseMemSize(memStr);
+        } catch (Exception e) {
+            Panic.panic(e);
         }
-        // 如果没有匹配到任何情况，那么返回默认的内存大小
         return DEFAULT_MEM;
     }
 
 
-    private static void createDB(String path){
+    private static void createDB(String path, DataManagerOptions dmOptions){
         TransactionManagerImpl tm = TransactionManager.create(path);
-        DataManager dm = DataManager.create(path, DEFAULT_MEM, tm);
+        DataManager dm = DataManager.create(path, DEFAULT_MEM, tm, dmOptions);
         VersionManager vm = new VersionManagerImpl(tm, dm);
         TableManager.create(path, vm, dm);
+        vm.close();
         tm.close();
         dm.close();
     }
     
-    private static void openDB(String path,long mem){
+    private static void openDB(String path, long mem, DataManagerOptions dmOptions){
         TransactionManagerImpl tm = TransactionManager.open(path);
-        DataManager dm = DataManager.open(path, mem, tm);
+        DataManager dm = DataManager.open(path, mem, tm, dmOptions);
         VersionManagerImpl vm = new VersionManagerImpl(tm, dm);
         TableManager tbm = TableManager.open(path, vm, dm);
+        // 服务不会主动退出, 进程结束时只释放清理队列中的记录(每条都写日志并落盘);
+        // 此时工作线程可能仍在事务中, 不关闭tm/dm, 数据库不标记为正常关闭, 下次打开照常恢复, 回滚未完成的事务
+        Runtime.getRuntime().addShutdownHook(new Thread(vm::close));
         new Server(port,tbm).start();
     }
 }
@@ -1,116 +1,439 @@
 package com.ggking.mydb.backend.common;
 
+import com.ggking.mydb.backend.common.policy.ClockPolicy;
+import com.ggking.mydb.backend.common.policy.ReplacementPolicy;
 import com.ggking.mydb.common.Error;
 
-import java.util.HashMap;
-import java.util.Set;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Predicate;
 
+/**
+ * 引用计数缓存框架
+ * maxResource > 0 时为有界缓存: 引用计数归0的资源继续驻留, 直到缓存满时按替换策略(默认CLOCK)淘汰,
+ * 淘汰时才调用releaseForCache(脏页在此写回)
+ * maxResource == 0 时为无界缓存: 引用计数归0立即释放
+ * maxResource == BUDGET_BOUND 时不限资源个数, 资源继续驻留, 只由内存预算按字节淘汰
+ * 有界缓存中isStale为真的资源(如已失效的记录)引用计数归0时立即释放, 不再驻留
+ * 加入MemoryBudget后, 资源按weigh的字节数计入共享预算, 超出预算时由预算协调各缓存淘汰
+ * releaseForCache可能写回磁盘或嵌套释放其他缓存中的资源, 总在桶锁之外调用:
+ * 先在桶锁内把缓存项标记为淘汰中, 写回完成后再移出; 期间同key的get等待移出后重新加载
+ */
 public abstract class AbstractCache<T> {
 
-    //实际缓存数据
-    private HashMap<Long,T> cache;
-    //记录资源当前被引用次数 为0时才能安全释放资源
-    private HashMap<Long,Integer> references;
-    //记录资源当前是否正在被获取
-    private HashMap<Long,Boolean> getting;
+    //不限资源个数的有界缓存, 须加入内存预算
+    public static final int BUDGET_BOUND = Integer.MAX_VALUE;
 
-    private int maxResource;                            // 缓存的最大缓存资源数
-    private int count = 0;                              // 缓存中元素的个数
-    private Lock lock;
+    //实际缓存数据 key -> 缓存项, ConcurrentHashMap按桶加锁, 不同key之间互不阻塞
+    private ConcurrentHashMap<Long, CacheHolder<T>> cache;
+
+    private volatile int maxResource;                   // 缓存的最大缓存资源数, 有界缓存可在运行时调整
+    private AtomicInteger count;                        // 缓存中元素的个数(包括正在加载的)
+    private boolean retain;                             // 引用计数归0后是否继续驻留
+
+    private ReplacementPolicy policy;
+    private CacheStats stats;
+    private MemoryBudget budget;
+
+    /**
+     * 缓存项, 引用计数只在cache对应桶的锁内(compute系列方法)修改
+     * 正在被获取的资源由future表示, 其他线程直接等待同一个future, 不再轮询
+     */
+    private static class CacheHolder<T> {
+        final CompletableFuture<T> future = new CompletableFuture<>();
+        volatile int references;
+        long weight;                                    // 计入内存预算的字节数
+        volatile boolean evicting;                      // 已决定淘汰, 只在桶锁内由false置为true
+        final CompletableFuture<Void> gone = new CompletableFuture<>();   // 写回完成并移出缓存
+    }
 
     public AbstractCache(int maxResource) {
+        this(maxResource, new ClockPolicy());
+    }
+
+    public AbstractCache(int maxResource, ReplacementPolicy policy) {
         this.maxResource = maxResource;
-        cache = new HashMap<>();
-        references = new HashMap<>();
-        getting = new HashMap<>();
-        lock = new ReentrantLock();
+        this.retain = maxResource > 0;
+        this.policy = policy;
+        cache = new ConcurrentHashMap<>();
+        count = new AtomicInteger(0);
+        stats = new CacheStats();
     }
 
     //从缓存中获取数据 若为空 则从磁盘中获取 并存入缓存
-    protected T get(long key) throws  Exception{
-        while (true){
-            lock.lock();
-            if (getting.containsKey(key)){
-                lock.unlock();
-                try {
-                    Thread.sleep(1);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
+    protected T get(long key) throws Exception {
+        while (true) {
+            CacheHolder<T> holder = cache.computeIfPresent(key, (k, h) -> {
+                if (!h.evicting) {
+                    h.references++;
+                }
+                return h;
+            });
+            if (holder != null) {
+                if (holder.evicting) {
+                    // 淘汰中的资源可能正在写回, 等写回完成、移出缓存后重新加载
+                    holder.gone.join();
                     continue;
                 }
-                continue;
-            }
-            if (cache.containsKey(key)){
-                T obj = cache.get(key);
-                references.put(key,references.get(key) + 1);
-                lock.unlock();
-                return obj;
+                stats.hits.increment();
+                if (retain) {
+                    policy.access(key);
+                }
+                return await(holder);
             }
 
-            if (maxResource > 0 && count == maxResource){
-                lock.unlock();
+            if (!reserve()) {
                 throw Error.CacheFullException;
             }
-
-            count++;
-            getting.put(key,true);
-            lock.unlock();
-            break;
-
+            CacheHolder<T> mine = new CacheHolder<>();
+            mine.references = 1;
+            if (cache.putIfAbsent(key, mine) != null) {
+                // 其他线程抢先开始加载, 归还名额后重新走命中流程
+                count.decrementAndGet();
+                continue;
+            }
+            stats.misses.increment();
+            return load(key, mine);
         }
-        T obj = null;
-        try{
+    }
+
+    private T load(long key, CacheHolder<T> holder) throws Exception {
+        T obj;
+        try {
             obj = getForCache(key);
-        }catch (Exception e){
-            lock.lock();
-            count--;
-            getting.remove(key);
+        } catch (Exception e) {
+            cache.remove(key, holder);
+            count.decrementAndGet();
+            holder.future.completeExceptionally(e);
             throw e;
         }
-
-        lock.lock();
-        getting.remove(key);
-        cache.put(key,obj);
-        references.put(key,1);
-        lock.unlock();
-
+        holder.future.complete(obj);
+        if (retain) {
+            policy.insert(key);
+        }
+        charge(holder, obj);
         return obj;
     }
 
-    protected void release(long key){
+    private T await(CacheHolder<T> holder) throws Exception {
         try {
-            lock.lock();
-            Integer ref = references.get(key) - 1;
-            if (ref == 0){
-                T obj = cache.get(key);
-                releaseForCache(obj);
-                cache.remove(key);
-                references.remove(key);
-                count--;
-            }else {
-                references.put(key,ref);
+            return holder.future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw e;
+        }
+    }
+
+    //占用一个缓存名额, 缓存已满时先尝试淘汰一个未被引用的资源
+    private boolean reserve() {
+        while (true) {
+            int c = count.get();
+            if (maxResource > 0 && c >= maxResource) {
+                if (retain && (evict() || relieve())) {
+                    continue;
+                }
+                return false;
             }
+            if (count.compareAndSet(c, c + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * 由替换策略挑选引用计数为0的资源淘汰; 挑选与确认之间资源可能被重新引用或被其他线程选中, 此时换一个重试
+     * 不设全局锁: 替换策略自身同步, 确认在桶锁内进行, 写回在锁外进行, 多个缺页可以同时淘汰、同时写回
+     */
+    private boolean evict() {
+        return evict(obj -> true);
+    }
+
+    //只淘汰满足filter的资源
+    private boolean evict(Predicate<T> filter) {
+        for (int attempt = 0; attempt < 8; attempt++) {
+            long key = policy.victim(k -> {
+                CacheHolder<T> h = cache.get(k);
+                return h != null && h.references == 0 && !h.evicting && filter.test(h.future.join());
+            });
+            if (key == ReplacementPolicy.NO_VICTIM) {
+                return false;
+            }
+            AtomicReference<CacheHolder<T>> victim = new AtomicReference<>();
+            cache.computeIfPresent(key, (k, h) -> {
+                if (h.references > 0 || h.evicting || !filter.test(h.future.join())) {
+                    return h;
+                }
+                h.evicting = true;
+                // 在桶锁内移出策略; 淘汰中的缓存项留在cache中直到写回完成, 同key不会在此之前重新加载
+                policy.remove(k);
+                victim.set(h);
+                return h;
+            });
+            if (victim.get() != null) {
+                stats.evictions.increment();
+                finishEviction(key, victim.get());
+                return true;
+            }
+        }
+        return false;
+    }
+
+    protected void release(long key) {
+        AtomicReference<CacheHolder<T>> dropped = new AtomicReference<>();
+        cache.computeIfPresent(key, (k, h) -> {
+            h.references--;
+            if (h.references == 0 && (!retain || isStale(h.future.join()))) {
+                h.evicting = true;
+                if (retain) {
+                    policy.remove(k);
+                }
+                dropped.set(h);
+            }
+            return h;
+        });
+        if (dropped.get() != null) {
+            finishEviction(key, dropped.get());
+        }
+    }
+
+    /**
+     * 在桶锁之外写回已标记为淘汰中的资源, 然后移出缓存并唤醒等待同key的get,
+     * 保证同key的后续get读到的是写回后的数据
+     */
+    private void finishEviction(long key, CacheHolder<T> holder) {
+        try {
+            releaseForCache(holder.future.join());
         } finally {
-            lock.unlock();
+            cache.remove(key, holder);
+            count.decrementAndGet();
+            credit(holder);
+            holder.gone.complete(null);
+        }
+    }
+
+    /**
+     * 把新建的资源直接放入缓存(不经过getForCache), 放入后引用计数为0, 只用于有界缓存
+     * 缓存已满且无法淘汰时返回false
+     */
+    protected boolean putResident(long key, T obj) {
+        if (!retain || !reserve()) {
+            return false;
+        }
+        CacheHolder<T> holder = new CacheHolder<>();
+        holder.future.complete(obj);
+        // 放入后引用计数为0, 随时可能被淘汰, 重量需在放入之前确定
+        holder.weight = budget == null ? 0 : weigh(obj);
+        if (cache.putIfAbsent(key, holder) != null) {
+            count.decrementAndGet();
+            return false;
+        }
+        policy.insert(key);
+        if (budget != null) {
+            budget.charge(holder.weight);
+        }
+        return true;
+    }
+
+    //资源是否已在缓存中(包括正在加载的)
+    protected boolean isResident(long key) {
+        return cache.containsKey(key);
+    }
+
+    /**
+     * 资源驻留但未被引用时立即淘汰; 返回之后该资源是否已不在使用中(不在缓存中、已淘汰或正由其他线程淘汰)
+     * 调用者据此判断能否改动资源所依据的数据, 正在加载的资源由加载者引用, 视为使用中
+     */
+    protected boolean evictIdle(long key) {
+        AtomicReference<CacheHolder<T>> victim = new AtomicReference<>();
+        boolean[] inUse = new boolean[1];
+        cache.computeIfPresent(key, (k, h) -> {
+            if (h.evicting) {
+                return h;
+            }
+            if (h.references > 0) {
+                inUse[0] = true;
+                return h;
+            }
+            h.evicting = true;
+            policy.remove(k);
+            victim.set(h);
+            return h;
+        });
+        if (victim.get() != null) {
+            stats.evictions.increment();
+            finishEviction(key, victim.get());
+        }
+        return !inUse[0];
+    }
+
+    /**
+     * 调用者持有的是否是该资源唯一的引用
+     * 在桶锁内判断, 与其他线程的get互斥; 调用者持有引用期间资源不会被淘汰或释放
+     */
+    protected boolean isSoleReference(long key) {
+        boolean[] sole = new boolean[1];
+        cache.computeIfPresent(key, (k, h) -> {
+            sole[0] = h.references == 1 && !h.evicting;
+            return h;
+        });
+        return sole[0];
+    }
+
+    //当前驻留的资源key快照(包括正在加载的)
+    protected List<Long> residentKeys() {
+        return new ArrayList<>(cache.keySet());
+    }
+
+    //资源已加载完成且未在淘汰时钉住并返回, 否则返回null; 钉住期间不会被淘汰, 调用者用完后需release
+    protected T pinIfResident(long key) {
+        AtomicReference<T> pinned = new AtomicReference<>();
+        cache.computeIfPresent(key, (k, h) -> {
+            if (!h.evicting && h.future.isDone() && !h.future.isCompletedExceptionally()) {
+                h.references++;
+                pinned.set(h.future.join());
+            }
+            return h;
+        });
+        return pinned.get();
+    }
+
+    /**
+     * 运行时调整有界缓存的容量; 缩小时先淘汰不需要写回的资源(isDirty为false),
+     * 返回缓存是否已降到新容量之内, 未降到时由调用者处理需要写回的资源后再调用shrink
+     */
+    protected boolean setMaxResource(int maxResource) {
+        if (!retain) {
+            throw new IllegalStateException("unbounded cache cannot be resized");
+        }
+        this.maxResource = maxResource;
+        policy.resize(maxResource);
+        return shrink();
+    }
+
+    protected boolean shrink() {
+        while (count.get() > maxResource) {
+            if (!evict(obj -> !isDirty(obj)) && !relieve()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    //淘汰前是否需要写回, 缩容时优先淘汰不需要写回的资源
+    protected boolean isDirty(T obj) {
+        return false;
+    }
+
+    //资源是否已无继续驻留的价值, 为真时引用计数归0即释放
+    protected boolean isStale(T obj) {
+        return false;
+    }
+
+    //加入共享内存预算, rank决定超出预算时的回收顺序
+    protected void joinBudget(MemoryBudget budget, int rank) {
+        this.budget = budget;
+        budget.register(this, rank);
+    }
+
+    protected MemoryBudget getBudget() {
+        return budget;
+    }
+
+    //资源计入内存预算的字节数
+    protected long weigh(T obj) {
+        return 0;
+    }
+
+    /**
+     * 计重在资源加载完成之后、且不持有任何桶锁时进行, 超出预算引起的回收可以安全地淘汰其他资源
+     * 此时加载者仍持有引用, 因此扣除不会早于计入
+     */
+    private void charge(CacheHolder<T> holder, T obj) {
+        if (budget == null) {
+            return;
+        }
+        holder.weight = weigh(obj);
+        budget.charge(holder.weight);
+    }
+
+    private void credit(CacheHolder<T> holder) {
+        if (budget != null) {
+            budget.credit(holder.weight);
         }
     }
 
-    protected void close(){
-        lock.lock();
-        try{
-            Set<Long> keys = references.keySet();
-            for (Long key : keys) {
-                T obj = cache.get(key);
-                releaseForCache(obj);
-                references.remove(key);
-                cache.remove(key);
+    //预算回收时调用: 淘汰一个未被引用的资源, 无界缓存中的资源都在被引用, 无可回收
+    boolean reclaimOne() {
+        return retain && evict();
+    }
+
+    //本缓存的资源都被引用时, 请预算从排在前面的缓存中淘汰一些, 它们持有的引用可能正钉住本缓存的资源
+    private boolean relieve() {
+        return budget != null && budget.relieve(this);
+    }
+
+    protected CacheStats getStats() {
+        return stats;
+    }
+
+    protected int getMaxResource() {
+        return maxResource;
+    }
+
+    //当前占用的缓存名额(包括正在加载的)
+    protected int residentCount() {
+        return count.get();
+    }
+
+    //当前被引用(钉住)的资源数, 需遍历缓存, 只用于统计展示
+    protected int pinnedCount() {
+        int pinned = 0;
+        for (CacheHolder<T> h : cache.values()) {
+            if (h.references > 0 && !h.evicting) {
+                pinned++;
             }
-        }finally {
-            lock.unlock();
         }
+        return pinned;
     }
+
+    //淘汰中的资源由淘汰者完成写回与移出, 这里跳过
+    protected void close() {
+        for (Long key : cache.keySet()) {
+            AtomicReference<CacheHolder<T>> detached = new AtomicReference<>();
+            cache.computeIfPresent(key, (k, h) -> {
+                if (h.evicting) {
+                    return h;
+                }
+                detached.set(h);
+                return null;
+            });
+            CacheHolder<T> h = detached.get();
+            if (h == null) {
+                continue;
+            }
+            if (retain) {
+                policy.remove(key);
+            }
+            try {
+                if (h.future.isDone() && !h.future.isCompletedExceptionally()) {
+                    releaseForCache(h.future.join());
+                }
+            } finally {
+                count.decrementAndGet();
+                credit(h);
+                h.gone.complete(null);
+            }
+        }
+    }
+
     protected abstract T getForCache(long key) throws Exception;
 
     protected abstract void releaseForCache(T obj);
@@ -0,0 +1,73 @@
+package com.ggking.mydb.backend.common;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 缓存运行统计, 计数器使用LongAdder分段累加, 热路径上不会因统计而争用同一个变量
+ * 命中/缺失/淘汰由AbstractCache记录, 写回次数与读写延迟由具体缓存(如页面缓存)记录
+ */
+public class CacheStats {
+
+    public final LongAdder hits = new LongAdder();
+    public final LongAdder misses = new LongAdder();
+    public final LongAdder evictions = new LongAdder();
+    public final LongAdder writeBacks = new LongAdder();
+
+    public final Histogram readLatency = new Histogram();
+    public final Histogram flushLatency = new Histogram();
+
+    public double hitRatio() {
+        long h = hits.sum();
+        long total = h + misses.sum();
+        return total == 0 ? 0 : (double) h / total;
+    }
+
+    /**
+     * 按2的幂分桶的延迟直方图, 单位微秒
+     * 第0桶为不足1us, 第i桶为[2^(i-1), 2^i)us, 最后一桶收纳所有更大的值
+     */
+    public static class Histogram {
+        private static final int BUCKETS = 32;
+
+        private final LongAdder[] buckets;
+        private final LongAdder totalNanos;
+
+        public Histogram() {
+            buckets = new LongAdder[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                buckets[i] = new LongAdder();
+            }
+            totalNanos = new LongAdder();
+        }
+
+        public void record(long nanos) {
+            long micros = nanos / 1000;
+            int idx = micros == 0 ? 0 : 64 - Long.numberOfLeadingZeros(micros);
+            buckets[Math.min(idx, BUCKETS - 1)].increment();
+            totalNanos.add(nanos);
+        }
+
+        public long count() {
+            long c = 0;
+            for (LongAdder b : buckets) {
+                c += b.sum();
+            }
+            return c;
+        }
+
+        //只输出非空的桶
+        public void describe(String name, StringBuilder sb) {
+            long count = count();
+            long avg = count == 0 ? 0 : totalNanos.sum() / count / 1000;
+            sb.append(name).append(": count=").append(count).append(" avg=").append(avg).append("us\n");
+            for (int i = 0; i < BUCKETS; i++) {
+                long n = buckets[i].sum();
+                if (n == 0) {
+                    continue;
+                }
+                String bound = i == BUCKETS - 1 ? ">=" + (1L << (i - 1)) : "<" + (1L << i);
+                sb.append("  ").append(bound).append("us: ").append(n).append("\n");
+            }
+        }
+    }
+}
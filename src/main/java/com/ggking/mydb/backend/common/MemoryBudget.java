@@ -0,0 +1,101 @@
+package com.ggking.mydb.backend.common;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 多个缓存共用的内存预算, 按字节计量
+ * 资源加载进缓存时按weigh计入, 离开缓存时扣除; 超出预算时按等级顺序(Entry -> DataItem -> 页面)
+ * 依次让各缓存淘汰未被引用的资源, 直到回到预算之内
+ * 被引用的资源无法淘汰, 此时允许暂时超出预算, 而不是让读取失败
+ * 排在前面的缓存引用着后面缓存的资源(Entry引用DataItem, DataItem引用页面), 后面的缓存无可淘汰时由relieve先淘汰前面的
+ */
+public class MemoryBudget {
+
+    //回收顺序, 数值小的先回收
+    public static final int RANK_ENTRY = 0;
+    public static final int RANK_DATA_ITEM = 1;
+    public static final int RANK_PAGE = 2;
+
+    //relieve一次最多淘汰的资源数, 分摊缓存挑选淘汰对象时的扫描
+    private static final int RELIEVE_BATCH = 32;
+
+    private volatile long limit;
+    private AtomicLong used;
+    private List<AbstractCache<?>> members;
+    private List<Integer> ranks;
+
+    public MemoryBudget(long limit) {
+        this.limit = limit;
+        used = new AtomicLong(0);
+        members = new ArrayList<>();
+        ranks = new ArrayList<>();
+    }
+
+    synchronized void register(AbstractCache<?> cache, int rank) {
+        int i = 0;
+        while (i < ranks.size() && ranks.get(i) <= rank) {
+            i++;
+        }
+        members.add(i, cache);
+        ranks.add(i, rank);
+    }
+
+    void charge(long bytes) {
+        if (used.addAndGet(bytes) > limit) {
+            reclaim();
+        }
+    }
+
+    void credit(long bytes) {
+        used.addAndGet(-bytes);
+    }
+
+    /**
+     * cache中的资源都被引用、无法淘汰时调用: 从紧挨着它的缓存起向前, 在第一个有可淘汰资源的缓存中淘汰一批
+     * 紧挨着的缓存直接持有cache的资源, 它的资源也都被引用时, 淘汰更前面的缓存才能让它的资源变为可淘汰
+     * 返回是否淘汰了资源
+     */
+    synchronized boolean relieve(AbstractCache<?> cache) {
+        int i = members.indexOf(cache);
+        for (int j = i - 1; j >= 0; j--) {
+            AbstractCache<?> member = members.get(j);
+            int n = 0;
+            while (n < RELIEVE_BATCH && member.reclaimOne()) {
+                n++;
+            }
+            if (n > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public void setLimit(long limit) {
+        this.limit = limit;
+        reclaim();
+    }
+
+    public long getLimit() {
+        return limit;
+    }
+
+    public long getUsed() {
+        return used.get();
+    }
+
+    //多个线程同时超出预算时只需一个去回收
+    private synchronized void reclaim() {
+        for (AbstractCache<?> cache : members) {
+            while (used.get() > limit) {
+                if (!cache.reclaimOne()) {
+                    break;
+                }
+            }
+            if (used.get() <= limit) {
+                return;
+            }
+        }
+    }
+}
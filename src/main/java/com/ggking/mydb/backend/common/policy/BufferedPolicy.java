@@ -0,0 +1,45 @@
+package com.ggking.mydb.backend.common.policy;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 需要在锁内维护队列的策略的基类
+ * 命中只把key写入有损的环形访问缓冲区, 不加锁; 子类在持有策略锁时(insert/remove/victim)先回放缓冲区中的命中
+ * 缓冲区写满后覆盖最旧的记录, 丢失的只是较早的命中, 淘汰顺序的精度略有下降, 命中路径不再串行
+ */
+abstract class BufferedPolicy implements ReplacementPolicy {
+
+    private static final int BUFFER_SIZE = 256;
+    private static final long EMPTY = NO_VICTIM;
+
+    private final AtomicLongArray buffer;
+    private final AtomicInteger next;
+
+    BufferedPolicy() {
+        buffer = new AtomicLongArray(BUFFER_SIZE);
+        for (int i = 0; i < BUFFER_SIZE; i++) {
+            buffer.set(i, EMPTY);
+        }
+        next = new AtomicInteger(0);
+    }
+
+    @Override
+    public final void access(long key) {
+        buffer.set(next.getAndIncrement() & (BUFFER_SIZE - 1), key);
+    }
+
+    //回放一次命中, 调用时持有策略锁
+    protected abstract void onAccess(long key);
+
+    //按从旧到新的顺序回放缓冲区中的命中, 调用时持有策略锁
+    protected void drainAccesses() {
+        int start = next.get();
+        for (int i = 0; i < BUFFER_SIZE; i++) {
+            long key = buffer.getAndSet((start + i) & (BUFFER_SIZE - 1), EMPTY);
+            if (key != EMPTY) {
+                onAccess(key);
+            }
+        }
+    }
+}
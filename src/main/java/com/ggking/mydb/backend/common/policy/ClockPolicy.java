@@ -0,0 +1,79 @@
+package com.ggking.mydb.backend.common.policy;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongPredicate;
+
+/**
+ * CLOCK(二次机会)策略
+ * 命中只设置访问位, 不加锁; 淘汰时从指针处转动, 访问位为1的清零后跳过
+ */
+public class ClockPolicy implements ReplacementPolicy {
+
+    private static class Slot {
+        final long key;
+        volatile boolean referenced;
+        boolean removed;
+
+        Slot(long key) {
+            this.key = key;
+        }
+    }
+
+    private ConcurrentHashMap<Long, Slot> slots;
+    //时钟环, 队头即指针所指位置
+    private ArrayDeque<Slot> ring;
+
+    public ClockPolicy() {
+        slots = new ConcurrentHashMap<>();
+        ring = new ArrayDeque<>();
+    }
+
+    @Override
+    public synchronized void insert(long key) {
+        Slot slot = new Slot(key);
+        slots.put(key, slot);
+        ring.addLast(slot);
+    }
+
+    @Override
+    public void access(long key) {
+        Slot slot = slots.get(key);
+        if (slot != null) {
+            slot.referenced = true;
+        }
+    }
+
+    @Override
+    public synchronized void remove(long key) {
+        // 环中的槽位留到指针扫过时再清理
+        Slot slot = slots.remove(key);
+        if (slot != null) {
+            slot.removed = true;
+        }
+    }
+
+    @Override
+    public synchronized long victim(LongPredicate evictable) {
+        int budget = 2 * ring.size();
+        while (budget-- > 0) {
+            Slot slot = ring.pollFirst();
+            if (slot == null) {
+                // 环中剩下的槽位都已移除并清理完
+                break;
+            }
+            if (slot.removed) {
+                continue;
+            }
+            ring.addLast(slot);
+            if (slot.referenced) {
+                slot.referenced = false;
+                continue;
+            }
+            if (evictable.test(slot.key)) {
+                return slot.key;
+            }
+        }
+        return NO_VICTIM;
+    }
+}
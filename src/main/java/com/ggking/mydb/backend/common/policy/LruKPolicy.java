@@ -0,0 +1,81 @@
+package com.ggking.mydb.backend.common.policy;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.LongPredicate;
+
+/**
+ * LRU-2策略(O'Neil), 按倒数第二次访问时间淘汰
+ * 只被访问过一次的资源后向2距离为无穷大, 优先按LRU顺序淘汰, 因此扫描产生的页面不会挤掉热点页面
+ */
+public class LruKPolicy extends BufferedPolicy {
+
+    private long clock;                                 // 逻辑时间
+    //只访问过一次的资源, 按访问顺序排列
+    private LinkedHashMap<Long, Boolean> once;
+    //访问过两次及以上的资源: 倒数第二次访问时间 -> key
+    private TreeMap<Long, Long> history;
+    //key -> [倒数第二次访问时间, 最后一次访问时间]
+    private Map<Long, long[]> times;
+
+    public LruKPolicy() {
+        once = new LinkedHashMap<>(16, 0.75f, true);
+        history = new TreeMap<>();
+        times = new HashMap<>();
+    }
+
+    @Override
+    public synchronized void insert(long key) {
+        drainAccesses();
+        times.put(key, new long[]{0, ++clock});
+        once.put(key, true);
+    }
+
+    @Override
+    protected void onAccess(long key) {
+        long[] t = times.get(key);
+        if (t == null) {
+            return;
+        }
+        if (t[0] == 0) {
+            once.remove(key);
+        } else {
+            history.remove(t[0]);
+        }
+        t[0] = t[1];
+        t[1] = ++clock;
+        history.put(t[0], key);
+    }
+
+    @Override
+    public synchronized void remove(long key) {
+        drainAccesses();
+        long[] t = times.remove(key);
+        if (t == null) {
+            return;
+        }
+        if (t[0] == 0) {
+            once.remove(key);
+        } else {
+            history.remove(t[0]);
+        }
+    }
+
+    @Override
+    public synchronized long victim(LongPredicate evictable) {
+        drainAccesses();
+        for (Long key : once.keySet()) {
+            if (evictable.test(key)) {
+                return key;
+            }
+        }
+        for (Long key : history.values()) {
+            if (evictable.test(key)) {
+                return key;
+            }
+        }
+        return NO_VICTIM;
+    }
+}
@@ -0,0 +1,45 @@
+package com.ggking.mydb.backend.common.policy;
+
+import java.util.LinkedHashMap;
+import java.util.function.LongPredicate;
+
+/**
+ * LRU策略, 淘汰最久未被访问的资源
+ */
+public class LruPolicy extends BufferedPolicy {
+
+    //按访问顺序排列, 队头为最久未访问
+    private LinkedHashMap<Long, Boolean> order;
+
+    public LruPolicy() {
+        order = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    @Override
+    public synchronized void insert(long key) {
+        drainAccesses();
+        order.put(key, true);
+    }
+
+    @Override
+    protected void onAccess(long key) {
+        order.get(key);
+    }
+
+    @Override
+    public synchronized void remove(long key) {
+        drainAccesses();
+        order.remove(key);
+    }
+
+    @Override
+    public synchronized long victim(LongPredicate evictable) {
+        drainAccesses();
+        for (Long key : order.keySet()) {
+            if (evictable.test(key)) {
+                return key;
+            }
+        }
+        return NO_VICTIM;
+    }
+}
@@ -0,0 +1,46 @@
+package com.ggking.mydb.backend.common.policy;
+
+import java.util.function.LongPredicate;
+
+/**
+ * 缓存替换策略
+ * 策略只负责记录资源的访问情况并挑选淘汰对象, 资源是否可被淘汰(引用计数是否为0)由缓存通过evictable告知
+ * 实现需自行保证线程安全; access在每次缓存命中时调用, 不应加全局锁(需要锁内维护队列的策略继承BufferedPolicy)
+ */
+public interface ReplacementPolicy {
+
+    long NO_VICTIM = Long.MIN_VALUE;
+
+    //资源加载完成, 进入缓存
+    void insert(long key);
+
+    //资源被命中, 可能由多个线程并发调用
+    void access(long key);
+
+    //资源离开缓存
+    void remove(long key);
+
+    //挑选一个满足evictable的淘汰对象, 不改变其驻留状态; 找不到时返回NO_VICTIM
+    long victim(LongPredicate evictable);
+
+    //缓存容量在运行时被调整, 按容量划分内部队列的策略需重新计算目标大小
+    default void resize(int capacity) {
+    }
+
+    public static ReplacementPolicy newPolicy(String name, int capacity) {
+        switch (name) {
+            case "clock":
+                return new ClockPolicy();
+            case "lru":
+                return new LruPolicy();
+            case "2q":
+                return new TwoQueuePolicy(capacity);
+            case "lru2":
+                return new LruKPolicy();
+            case "tinylfu":
+                return new TinyLfuPolicy(capacity);
+            default:
+                return null;
+        }
+    }
+}
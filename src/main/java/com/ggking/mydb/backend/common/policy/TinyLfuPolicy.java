@@ -0,0 +1,180 @@
+package com.ggking.mydb.backend.common.policy;
+
+import java.util.LinkedHashMap;
+import java.util.function.LongPredicate;
+
+/**
+ * W-TinyLFU策略(Einziger & Friedman)
+ * 新资源先进入1%大小的LRU窗口; 窗口溢出时, 窗口尾部的候选者与主区SLRU试用段尾部的受害者比较
+ * Count-Min Sketch估计的访问频率, 频率低的一方被淘汰. 主区分为试用段(20%)和保护段(80%)
+ */
+public class TinyLfuPolicy extends BufferedPolicy {
+
+    private static final int WINDOW = 0;
+    private static final int PROBATION = 1;
+    private static final int PROTECTED = 2;
+
+    private int maxWindow;
+    private int maxProtected;
+
+    private LinkedHashMap<Long, Boolean> window;
+    private LinkedHashMap<Long, Boolean> probation;
+    private LinkedHashMap<Long, Boolean> protect;
+    private FrequencySketch sketch;
+
+    public TinyLfuPolicy(int capacity) {
+        resize(capacity);
+        window = new LinkedHashMap<>(16, 0.75f, true);
+        probation = new LinkedHashMap<>(16, 0.75f, true);
+        protect = new LinkedHashMap<>(16, 0.75f, true);
+        sketch = new FrequencySketch(capacity);
+    }
+
+    //频率草图保持原大小, 只影响估计精度; 保护段超出的部分在后续访问时逐个降级
+    @Override
+    public synchronized void resize(int capacity) {
+        capacity = Math.max(1, capacity);
+        maxWindow = Math.max(1, capacity / 100);
+        maxProtected = Math.max(1, (capacity - maxWindow) * 4 / 5);
+    }
+
+    @Override
+    public synchronized void insert(long key) {
+        drainAccesses();
+        sketch.increment(key);
+        window.put(key, true);
+    }
+
+    @Override
+    protected void onAccess(long key) {
+        sketch.increment(key);
+        switch (segmentOf(key)) {
+            case WINDOW:
+                window.get(key);
+                break;
+            case PROBATION:
+                probation.remove(key);
+                protect.put(key, true);
+                if (protect.size() > maxProtected) {
+                    Long demoted = protect.keySet().iterator().next();
+                    protect.remove(demoted);
+                    probation.put(demoted, true);
+                }
+                break;
+            case PROTECTED:
+                protect.get(key);
+                break;
+            default:
+        }
+    }
+
+    @Override
+    public synchronized void remove(long key) {
+        drainAccesses();
+        if (window.remove(key) == null && probation.remove(key) == null) {
+            protect.remove(key);
+        }
+    }
+
+    @Override
+    public synchronized long victim(LongPredicate evictable) {
+        drainAccesses();
+        if (window.size() > maxWindow) {
+            long candidate = first(window, evictable);
+            long victim = first(probation, evictable);
+            if (candidate != NO_VICTIM && victim != NO_VICTIM) {
+                // 准入过滤: 候选者更"热"则进入试用段, 淘汰原受害者
+                if (sketch.frequency(candidate) > sketch.frequency(victim)) {
+                    window.remove(candidate);
+                    probation.put(candidate, true);
+                    return victim;
+                }
+                return candidate;
+            }
+            if (candidate != NO_VICTIM) {
+                return candidate;
+            }
+        }
+        long key = first(probation, evictable);
+        if (key == NO_VICTIM) {
+            key = first(protect, evictable);
+        }
+        if (key == NO_VICTIM) {
+            key = first(window, evictable);
+        }
+        return key;
+    }
+
+    private int segmentOf(long key) {
+        if (window.containsKey(key)) return WINDOW;
+        if (probation.containsKey(key)) return PROBATION;
+        if (protect.containsKey(key)) return PROTECTED;
+        return -1;
+    }
+
+    private static long first(LinkedHashMap<Long, Boolean> segment, LongPredicate evictable) {
+        for (Long key : segment.keySet()) {
+            if (evictable.test(key)) {
+                return key;
+            }
+        }
+        return NO_VICTIM;
+    }
+
+    /**
+     * 4行Count-Min Sketch, 计数上限15; 累计增加次数达到10倍容量时全体减半, 使频率随时间衰减
+     */
+    static class FrequencySketch {
+        private static final int DEPTH = 4;
+        private static final int MAX_COUNT = 15;
+        private static final long[] SEEDS = {0x9E3779B97F4A7C15L, 0xC2B2AE3D27D4EB4FL, 0x165667B19E3779F9L, 0xD6E8FEB86659FD93L};
+
+        private byte[][] table;
+        private int mask;
+        private int additions;
+        private int sampleSize;
+
+        FrequencySketch(int capacity) {
+            int width = Integer.highestOneBit(Math.max(16, capacity) - 1) << 1;
+            table = new byte[DEPTH][width];
+            mask = width - 1;
+            sampleSize = 10 * width;
+        }
+
+        void increment(long key) {
+            boolean added = false;
+            for (int i = 0; i < DEPTH; i++) {
+                int idx = index(key, i);
+                if (table[i][idx] < MAX_COUNT) {
+                    table[i][idx]++;
+                    added = true;
+                }
+            }
+            if (added && ++additions >= sampleSize) {
+                reset();
+            }
+        }
+
+        int frequency(long key) {
+            int freq = MAX_COUNT;
+            for (int i = 0; i < DEPTH; i++) {
+                freq = Math.min(freq, table[i][index(key, i)]);
+            }
+            return freq;
+        }
+
+        private void reset() {
+            for (byte[] row : table) {
+                for (int j = 0; j < row.length; j++) {
+                    row[j] >>= 1;
+                }
+            }
+            additions >>>= 1;
+        }
+
+        private int index(long key, int i) {
+            long h = (key + SEEDS[i]) * SEEDS[(i + 1) % DEPTH];
+            return (int) (h ^ (h >>> 32)) & mask;
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package com.ggking.mydb.backend.common.policy;
+
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.function.LongPredicate;
+
+/**
+ * 2Q策略(Johnson & Shasha), 抗全表扫描
+ * 首次进入的资源放在FIFO队列A1in, 被挤出A1in后只在幽灵队列A1out中保留key;
+ * 只有在A1out中再次被访问的资源才进入LRU队列Am, 因此一次性扫描不会冲掉热点数据
+ */
+public class TwoQueuePolicy extends BufferedPolicy {
+
+    private int kIn;                                    // A1in的目标大小
+    private int kOut;                                   // A1out的最大长度
+
+    private LinkedHashSet<Long> a1in;
+    private LinkedHashSet<Long> a1out;
+    private LinkedHashMap<Long, Boolean> am;
+
+    public TwoQueuePolicy(int capacity) {
+        resize(capacity);
+        a1in = new LinkedHashSet<>();
+        a1out = new LinkedHashSet<>();
+        am = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    @Override
+    public synchronized void resize(int capacity) {
+        kIn = Math.max(1, capacity / 4);
+        kOut = Math.max(1, capacity / 2);
+        while (a1out != null && a1out.size() > kOut) {
+            a1out.remove(a1out.iterator().next());
+        }
+    }
+
+    @Override
+    public synchronized void insert(long key) {
+        drainAccesses();
+        if (a1out.remove(key)) {
+            am.put(key, true);
+        } else {
+            a1in.add(key);
+        }
+    }
+
+    @Override
+    protected void onAccess(long key) {
+        // A1in中的命中不调整位置, 避免短时间内的相关访问被当成热点
+        am.get(key);
+    }
+
+    @Override
+    public synchronized void remove(long key) {
+        drainAccesses();
+        if (a1in.remove(key)) {
+            a1out.add(key);
+            if (a1out.size() > kOut) {
+                a1out.remove(a1out.iterator().next());
+            }
+            return;
+        }
+        am.remove(key);
+    }
+
+    @Override
+    public synchronized long victim(LongPredicate evictable) {
+        drainAccesses();
+        if (a1in.size() > kIn || am.isEmpty()) {
+            long key = first(a1in, evictable);
+            if (key != NO_VICTIM) {
+                return key;
+            }
+        }
+        long key = first(am.keySet(), evictable);
+        if (key != NO_VICTIM) {
+            return key;
+        }
+        return first(a1in, evictable);
+    }
+
+    private static long first(Iterable<Long> keys, LongPredicate evictable) {
+        for (Long key : keys) {
+            if (evictable.test(key)) {
+                return key;
+            }
+        }
+        return NO_VICTIM;
+    }
+}
@@ -1,5 +1,6 @@
 package com.ggking.mydb.backend.dm;
 
+import com.ggking.mydb.backend.common.MemoryBudget;
 import com.ggking.mydb.backend.dm.dataItem.DataItem;
 import com.ggking.mydb.backend.dm.dataItem.DataItemImpl;
 import com.ggking.mydb.backend.dm.logger.Logger;
@@ -7,28 +8,53 @@ import com.ggking.mydb.backend.dm.page.PageOne;
 import com.ggking.mydb.backend.dm.pageCache.PageCache;
 import com.ggking.mydb.backend.tm.TransactionManager;
 
+import java.util.List;
+
 public interface DataManager {
     DataItem read(long uid) throws Exception;
     long insert(long xid, byte[] data) throws Exception;
+    //批量插入, 返回的uid与datas一一对应
+    long[] insertBatch(long xid, List<byte[]> datas) throws Exception;
+    //释放一条已不可见的记录, 空间在页内整理后复用
+    void free(long xid, long uid) throws Exception;
+    //提示稍后将读取uid所在的页面; 须在读取之前足够早地调用, 紧接着就同步读取时没有意义
+    void prefetch(long uid);
+    //缓冲池运行统计
+    String status();
+    //运行时调整缓冲池大小(字节)
+    void resizeBufferPool(long memory) throws Exception;
+    MemoryBudget getMemoryBudget();
     void close();
     public static DataManager create(String path, long mem, TransactionManager tm){
-        PageCache pc = PageCache.create(path,mem);
+        return create(path, mem, tm, new DataManagerOptions());
+    }
+
+    public static DataManager create(String path, long mem, TransactionManager tm, DataManagerOptions options){
+        PageCache pc = PageCache.create(path, mem, options);
         Logger lg = Logger.create(path);
-        DataManagerImpl dm = new DataManagerImpl(pc, lg, tm);
+        DataManagerImpl dm = new DataManagerImpl(pc, lg, tm, options);
         dm.initPageOne();
         return dm;
     }
 
     public static DataManager open(String path,long mem,TransactionManager tm){
-        PageCache pc = PageCache.open(path,mem);
+        return open(path, mem, tm, new DataManagerOptions());
+    }
+
+    public static DataManager open(String path, long mem, TransactionManager tm, DataManagerOptions options){
+        PageCache pc = PageCache.open(path, mem, options);
         Logger lg = Logger.open(path);
-        DataManagerImpl dm = new DataManagerImpl(pc, lg, tm);
+        DataManagerImpl dm = new DataManagerImpl(pc, lg, tm, options);
         if (!dm.loadCheckPageOne()){
-            Recover.recover(tm,lg,pc);
+            Recover.recover(tm,lg,pc,dm.slotted);
+            dm.fillPageIndex();
+        }else {
+            dm.reconcilePageCount();
+            dm.loadPageIndex();
         }
-        dm.fillPageIndex();
         PageOne.setVcOpen(dm.pageOne);
         dm.pc.flushPage(dm.pageOne);
+        dm.pc.warmUp();
         return dm;
     }
 }
@@ -1,11 +1,15 @@
 package com.ggking.mydb.backend.dm;
 
 import com.ggking.mydb.backend.common.AbstractCache;
+import com.ggking.mydb.backend.common.MemoryBudget;
 import com.ggking.mydb.backend.dm.dataItem.DataItem;
 import com.ggking.mydb.backend.dm.dataItem.DataItemImpl;
 import com.ggking.mydb.backend.dm.logger.Logger;
 import com.ggking.mydb.backend.dm.page.Page;
+import com.ggking.mydb.backend.dm.page.PageFsm;
 import com.ggking.mydb.backend.dm.page.PageOne;
+import com.ggking.mydb.backend.dm.page.PageOverflow;
+import com.ggking.mydb.backend.dm.page.PageSlotted;
 import com.ggking.mydb.backend.dm.page.PageX;
 import com.ggking.mydb.backend.dm.pageCache.PageCache;
 import com.ggking.mydb.backend.dm.pageIndex.PageIndex;
@@ -16,45 +20,165 @@ import com.ggking.mydb.backend.utils.Types;
 import com.ggking.mydb.common.Error;
 
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class DataManagerImpl extends AbstractCache<DataItem> implements DataManager{
 
+    private static final int PREFETCH_WINDOW = 64;
+    //DataItemImpl对象本身、读写锁与SubArray的大致开销; oldRaw只在修改期间存在, 不计入
+    private static final int DATA_ITEM_OVERHEAD = 128;
+    //有效记录占已用空间的比例低于此值时做页内整理
+    private static final double COMPACT_THRESHOLD = 0.5;
+    //溢出记录留在页内的前缀长度, 至少要容纳Entry的xmin/xmax, 使版本判断不必读溢出页
+    private static final int OVERFLOW_PREFIX = 64;
+
     TransactionManager tm;
     PageCache pc;
     Logger logger;
     PageIndex pIndex;
     Page pageOne;
+    FreeSpaceMap fsm;
+    //插入亲和模式下各线程独占的目标页, 不在pIndex中; 取用时先移出, 同一页不会被两个线程同时使用
+    private Map<Thread, PageInfo> reserved;
+    //整理过、可能含有空闲区的页面, 放回索引时需按空闲区计算可用空间; 不持久化, 重启后只按末尾空间计
+    private Set<Integer> holedPages;
+    //数据页是否为带槽目录的格式(见PageOne.OF_FORMAT), 此时uid中的页内位置是槽号与代数
+    boolean slotted;
+    //创建数据库时选用的数据页格式
+    private String format;
 
     public DataManagerImpl(PageCache pc, Logger logger, TransactionManager tm) {
-        super(0);
+        this(pc, logger, tm, new DataManagerOptions());
+    }
+
+    public DataManagerImpl(PageCache pc, Logger logger, TransactionManager tm, DataManagerOptions options) {
+        // DataItem释放后继续驻留, 由内存预算与Entry、页面一起按字节淘汰
+        super(BUDGET_BOUND);
+        if (options.insertAffinity) {
+            reserved = new ConcurrentHashMap<>();
+        }
         this.pc = pc;
         this.logger = logger;
         this.tm = tm;
-        this.pIndex = new PageIndex();
+        this.pIndex = new PageIndex(pc.getPageSize());
+        this.holedPages = ConcurrentHashMap.newKeySet();
+        this.format = options.format;
+        joinBudget(pc.getMemoryBudget(), MemoryBudget.RANK_DATA_ITEM);
+    }
+
+    //数据本身在页面中, 已按页面计入; 这里只计对象开销
+    @Override
+    protected long weigh(DataItem di) {
+        return DATA_ITEM_OVERHEAD;
+    }
+
+    //失效记录(包括空槽)不再驻留: 之后的读取都返回null, 驻留只会钉住页面、推迟页内整理
+    @Override
+    protected boolean isStale(DataItem di) {
+        return !((DataItemImpl) di).isValid();
     }
 
 
+    //正常关闭后打开时从空闲空间映射重建PageIndex, 映射不可用时退回全量扫描
+    void loadPageIndex(){
+        fsm = new FreeSpaceMap(pc, pageOne);
+        if (!fsm.load(pIndex)){
+            fillPageIndex();
+        }
+    }
+
+    /**
+     * 全量扫描所有数据页, 同时重建空闲空间映射
+     * 新页建立时只在缓存中, 崩溃前未写回也未写日志的新页截断后仍留在文件中, 内容为全0;
+     * 这样的页面当作旧格式页面会读出FSO = 0, 插入会覆盖页头, 因此先重新初始化为空数据页;
+     * 映射页不写日志, 落盘了却没能接入链表的映射页(链表在它之前断开)同样改写为空数据页
+     * 恢复中撤销的溢出记录, 以及崩溃前因有读者而未回收溢出页的记录, 扫描后整理所在页面回收它们的溢出页链
+     */
     void fillPageIndex(){
-        int pageNum = pc.getPageNumber();
-        for (int i = 2;i <= pageNum;i++){
+        if (fsm == null){
+            fsm = new FreeSpaceMap(pc, pageOne);
+        }
+        fsm.reset();
+        List<Integer> pending = new ArrayList<>();
+        // 页号按无符号数处理, 超过2^31的页号在int中为负
+        long pageNum = Integer.toUnsignedLong(pc.getPageNumber());
+        for (long p = 2;p <= pageNum;p++){
+            int i = (int) p;
+            // 每读完一个窗口, 预告接下来两个窗口的页面
+            if ((p - 2) % PREFETCH_WINDOW == 0){
+                pc.prefetch(i, 2 * PREFETCH_WINDOW);
+            }
             Page pg = null;
             try {
                 pg = pc.getPage(i);
             } catch (Exception e) {
                 Panic.panic(e);
             }
-            pIndex.add(pg.getPageNumber(), PageX.getFreeSpace(pg));
+            if (needsInit(pg)){
+                PageX.recoverUpdate(pg, slotted ? PageSlotted.initRaw(pc.getPageSize()) : PageX.initRaw(pc.getPageSize()), 0);
+            }
+            if (PageX.isSpecial(pg)){
+                // 特殊页两种格式通用, 不参与分配
+            }else if (slotted){
+                int freeSpace = PageSlotted.getFreeSpace(pg);
+                fsm.update(i, freeSpace);
+                pIndex.add(i, freeSpace);
+                if (PageSlotted.hasPendingOverflow(pg)){
+                    pending.add(i);
+                }
+            }else {
+                int freeSpace = PageX.getUsableSpace(pg);
+                if (freeSpace > PageX.getFreeSpace(pg)){
+                    holedPages.add(i);
+                }
+                fsm.update(i, freeSpace);
+                pIndex.add(i, freeSpace);
+                if (PageX.hasPendingOverflow(pg)){
+                    pending.add(i);
+                }
+            }
             pg.release();
         }
+        for (int pgno : pending){
+            try {
+                compactPage(pgno);
+            } catch (Exception e) {
+                Panic.panic(e);
+            }
+        }
+    }
+
+    private boolean needsInit(Page pg) {
+        if (PageX.isSpecial(pg)){
+            return PageFsm.isFsm(pg) && !fsm.isChained(pg.getPageNumber());
+        }
+        return slotted ? PageSlotted.isUninitialized(pg) : PageX.isUninitialized(pg);
     }
 
     @Override
     protected DataItem getForCache(long uid) throws Exception {
-        short offset = (short) (uid & ((1L << 16) -1));
-        uid >>>=  32;
-        int pgno = (int) (uid & ((1L << 32) - 1));
+        int position = (int) uid;
+        int pgno = (int) (uid >>> 32);
         Page pg = pc.getPage(pgno);
-        return DataItem.parseDataItem(pg,offset,this);
+        if (!slotted){
+            return DataItem.parseDataItem(pg, position & 0xFFFF, this);
+        }
+        // 整理会移动记录, 查槽与建立DataItem需在页锁内完成, 与整理互斥
+        pg.lock();
+        try {
+            int slotOffset = PageSlotted.getOffset(pg, position);
+            if (slotOffset == PageSlotted.EMPTY_SLOT){
+                return DataItem.emptySlotDataItem(pg, uid, this);
+            }
+            return DataItem.parseDataItem(pg, slotOffset, uid, this);
+        } finally {
+            pg.unlock();
+        }
     }
 
     @Override
@@ -74,53 +198,434 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
 
     @Override
     public long insert(long xid, byte[] data) throws Exception {
+        int maxFreeSpace = maxFreeSpace();
+        return insertRaw(xid, wrapRaw(data, maxFreeSpace), maxFreeSpace);
+    }
+
+    //一页放不下的数据写成溢出记录, 页内只留前缀与溢出页链的入口
+    private byte[] wrapRaw(byte[] data, int maxFreeSpace) {
         byte[] raw = DataItem.wrapDataItemRaw(data);
-        if (raw.length > PageX.MAX_FREE_SPACE){
-            throw Error.DataTooLargeException;
-        }
-        PageInfo pi = null;
-        for (int i = 0;i < 5;i++){
-            pi = pIndex.select(raw.length);
-            if (pi != null){
-                break;
-            }else {
-                int pgno = pc.newPage(PageX.initRaw());
-                pIndex.add(pgno,PageX.MAX_FREE_SPACE);
+        if (raw.length <= maxFreeSpace){
+            return raw;
+        }
+        return DataItem.wrapOverflowRaw(data, OVERFLOW_PREFIX, writeOverflow(data));
+    }
+
+    /**
+     * 把前缀之后的数据从后往前写入新的溢出页, 返回链表第一页
+     * 每页以整页镜像写日志(恢复时据此重建溢出页, 也保证截断时不会截掉它们); 溢出页不进入pIndex
+     */
+    private int writeOverflow(byte[] data) {
+        int capacity = PageOverflow.capacity(pc.getPageSize());
+        int chunks = (data.length - OVERFLOW_PREFIX + capacity - 1) / capacity;
+        int next = 0;
+        for (int i = chunks - 1; i >= 0; i--) {
+            int from = OVERFLOW_PREFIX + i * capacity;
+            int to = Math.min(data.length, from + capacity);
+            byte[] image = PageOverflow.initRaw(pc.getPageSize(), next, data, from, to);
+            next = pc.newPage(image);
+            logger.log(Recover.pageImageLog(next, image));
+        }
+        return next;
+    }
+
+    //记录释放后把它的溢出页改写为空数据页放回pIndex
+    private void freeOverflow(int pgno) throws Exception {
+        int maxFreeSpace = maxFreeSpace();
+        while (pgno != 0) {
+            Page pg = pc.getPage(pgno);
+            int next;
+            try {
+                if (!PageOverflow.isOverflow(pg)){
+                    return;
+                }
+                next = PageOverflow.getNext(pg);
+                byte[] image = slotted ? PageSlotted.initRaw(pc.getPageSize()) : PageX.initRaw(pc.getPageSize());
+                pg.lock();
+                try {
+                    logger.log(Recover.pageImageLog(pgno, image));
+                    PageX.recoverUpdate(pg, image, 0);
+                } finally {
+                    pg.unlock();
+                }
+            } finally {
+                pg.release();
+            }
+            fsm.update(pgno, maxFreeSpace);
+            pIndex.offer(pgno, maxFreeSpace);
+            pgno = next;
+        }
+    }
+
+    //溢出记录的读取流按页取用溢出页, 用完即释放
+    public Page getOverflowPage(int pgno) throws Exception {
+        return pc.getPage(pgno);
+    }
+
+    /**
+     * 在页锁内放置记录: 先放末尾, 放不下再找空闲区; 都放不下说明索引中的剩余空间已过时,
+     * 放回页面(此时记下真实的可用空间)后重新挑选
+     */
+    private long insertRaw(long xid, byte[] raw, int maxFreeSpace) throws Exception {
+        for (int i = 0; i < 5; i++) {
+            PageInfo pi = selectPage(raw.length, maxFreeSpace);
+            Page pg = null;
+            try {
+                pg = pc.getPage(pi.pgno);
+                pg.lock();
+                try {
+                    if (slotted){
+                        if (PageSlotted.getFreeSpace(pg) >= raw.length){
+                            byte[] log = Recover.slotInsertLog(xid, pg, raw);
+                            logger.log(log);
+                            int address = PageSlotted.insert(pg, raw);
+                            return Types.slotToUid(pi.pgno, address);
+                        }
+                        continue;
+                    }
+                    if (PageX.getFreeSpace(pg) >= raw.length){
+                        byte[] log = Recover.insertLog(xid,pg,raw);
+                        logger.log(log);
+                        int offset = PageX.insert(pg, raw);
+                        return Types.addressToUid(pi.pgno, offset);
+                    }
+                    int offset = PageX.findFiller(pg, raw.length);
+                    if (offset >= 0){
+                        byte[] placed = PageX.fillerInsertRaw(pg, raw, offset);
+                        byte[] log = Recover.insertLog(xid, pi.pgno, offset, placed);
+                        logger.log(log);
+                        PageX.insertAt(pg, placed, offset);
+                        return Types.addressToUid(pi.pgno, offset);
+                    }
+                } finally {
+                    pg.unlock();
+                }
+            } finally {
+                returnPage(pi.pgno, pg);
+            }
+        }
+        throw Error.DatabaseBusyException;
+    }
+
+    /**
+     * 批量插入: 每次取一个页面, 尽量多地放入后续记录, 整页只写一条批量插入日志; 返回的uid与datas一一对应
+     */
+    @Override
+    public long[] insertBatch(long xid, List<byte[]> datas) throws Exception {
+        int maxFreeSpace = maxFreeSpace();
+        byte[][] raws = new byte[datas.size()][];
+        for (int i = 0; i < raws.length; i++) {
+            raws[i] = wrapRaw(datas.get(i), maxFreeSpace);
+        }
+        long[] uids = new long[raws.length];
+        int next = 0;
+        while (next < raws.length) {
+            PageInfo pi = selectPage(raws[next].length, maxFreeSpace);
+            Page pg = null;
+            int end;
+            try {
+                pg = pc.getPage(pi.pgno);
+                pg.lock();
+                try {
+                    end = insertBatchInto(xid, pg, raws, next, uids);
+                } finally {
+                    pg.unlock();
+                }
+            } finally {
+                returnPage(pi.pgno, pg);
+            }
+            if (end == next) {
+                // 页面因空闲区被选中, 末尾放不下这条记录, 单独放置
+                uids[next] = insertRaw(xid, raws[next], maxFreeSpace);
+                end++;
+            }
+            next = end;
+        }
+        return uids;
+    }
+
+    //从raws[next]起尽量多地放入pg末尾, 返回第一条未放入的下标; 第一条就放不下时返回next
+    private int insertBatchInto(long xid, Page pg, byte[][] raws, int next, long[] uids) {
+        int freeSpace = slotted ? PageSlotted.getFreeSpace(pg) : PageX.getFreeSpace(pg);
+        // 带槽目录的页面中第一条记录的槽已在freeSpace中扣除, 之后每条再占一个槽
+        int slotCost = slotted ? PageSlotted.LEN_SLOT : 0;
+        int end = next;
+        int total = 0;
+        while (end < raws.length && total + raws[end].length + (end - next) * slotCost <= freeSpace) {
+            total += raws[end].length;
+            end++;
+        }
+        if (end == next) {
+            return next;
+        }
+        byte[] batch = new byte[total];
+        int pos = 0;
+        for (int i = next; i < end; i++) {
+            System.arraycopy(raws[i], 0, batch, pos, raws[i].length);
+            pos += raws[i].length;
+        }
+        if (slotted) {
+            byte[] log = Recover.slotInsertLog(xid, pg, batch);
+            logger.log(log);
+            int address = PageSlotted.insert(pg, batch);
+            for (int i = next; i < end; i++) {
+                uids[i] = Types.slotToUid(pg.getPageNumber(), address++);
+            }
+            return end;
+        }
+        byte[] log = Recover.insertBatchLog(xid, pg, batch);
+        logger.log(log);
+        int offset = PageX.insert(pg, batch);
+        for (int i = next; i < end; i++) {
+            uids[i] = Types.addressToUid(pg.getPageNumber(), offset);
+            offset += raws[i].length;
+        }
+        return end;
+    }
+
+    private int maxFreeSpace() {
+        return slotted ? PageSlotted.maxFreeSpace(pc.getPageSize()) : PageX.maxFreeSpace(pc.getPageSize());
+    }
+
+    //挑选一个至少能放下size字节的页面, 没有时新建; 用完后须由returnPage放回
+    private PageInfo selectPage(int size, int maxFreeSpace) throws Exception {
+        PageInfo pi = takeReserved(size);
+        for (int i = 0;i < 5 && pi == null;i++){
+            pi = pIndex.select(size);
+            if (pi == null){
+                reclaimReserved();
+                int pgno = pc.newPage(slotted ? PageSlotted.initRaw(pc.getPageSize()) : PageX.initRaw(pc.getPageSize()));
+                fsm.update(pgno, maxFreeSpace);
+                pIndex.add(pgno,maxFreeSpace);
             }
         }
         if (pi == null){
             throw Error.DatabaseBusyException;
         }
-        Page pg = null;
+        return pi;
+    }
+
+    private void returnPage(int pgno, Page pg) {
         int freeSpace = 0;
-        try {
-            pg = pc.getPage(pi.pgno);
-            byte[] log = Recover.insertLog(xid,pg,raw);
-            logger.log(log);
-            short offset = PageX.insert(pg, raw);
+        // 释放之后页框可能被淘汰复用, 必须在释放前读取剩余空间
+        if (pg != null){
+            if (slotted){
+                freeSpace = PageSlotted.getFreeSpace(pg);
+            }else {
+                freeSpace = holedPages.contains(pgno) ? PageX.getUsableSpace(pg) : PageX.getFreeSpace(pg);
+            }
             pg.release();
-            return Types.addressToUid(pi.pgno, offset);
+        }
+        // 先更新映射再放回索引, 放回之后其他线程可能立即写入该页并写下更小的值
+        fsm.update(pgno, freeSpace);
+        if (reserved != null){
+            // 重试时本线程可能已经独占了另一页, 被替换下来的页面须还回pIndex, 否则其空闲空间直到重启都不可用
+            PageInfo old = reserved.put(Thread.currentThread(), new PageInfo(pgno, freeSpace));
+            if (old != null && old.pgno != pgno){
+                pIndex.add(old.pgno, old.freeSpace);
+            }
+        }else {
+            pIndex.add(pgno,freeSpace);
+        }
+    }
+
+    //取出当前线程独占的目标页; 放不下时还回pIndex, 由调用者重新挑选
+    private PageInfo takeReserved(int size) {
+        if (reserved == null) {
+            return null;
+        }
+        PageInfo pi = reserved.remove(Thread.currentThread());
+        if (pi != null && pi.freeSpace < size) {
+            pIndex.add(pi.pgno, pi.freeSpace);
+            return null;
+        }
+        return pi;
+    }
+
+    //pIndex中没有合适的页面时, 把已退出线程独占的页面还回pIndex, 再决定是否新建页面
+    private void reclaimReserved() {
+        if (reserved == null) {
+            return;
+        }
+        for (Map.Entry<Thread, PageInfo> e : reserved.entrySet()) {
+            if (!e.getKey().isAlive() && reserved.remove(e.getKey(), e.getValue())) {
+                pIndex.add(e.getValue().pgno, e.getValue().freeSpace);
+            }
+        }
+    }
+
+    /**
+     * 释放一条不再被任何事务看到的记录: 置为无效(超级事务写日志, 恢复时不会撤销), 再视情况整理所在页面
+     */
+    @Override
+    public void free(long xid, long uid) throws Exception {
+        DataItem di = read(uid);
+        if (di == null){
+            return;
+        }
+        try {
+            int overflow = 0;
+            if (di.isOverflow()){
+                overflow = ((DataItemImpl) di).firstOverflowPage();
+            }
+            di.before();
+            DataItem.setDataItemRawInvalid(di.getRaw());
+            di.after(xid);
+            // 记录已失效, 之后的read都返回null; 判断与回收期间本线程一直持有引用,
+            // 之前取得该记录的读者(可能正在读溢出页)都还持有引用, 此时保留溢出标记, 由之后的页内整理回收
+            if (overflow != 0 && isSoleReference(uid)){
+                // 先去掉溢出标记再回收, 带标记的失效记录都还持有溢出页链, 同一条链不会被回收两次
+                di.before();
+                DataItem.clearOverflowFlag(di.getRaw());
+                di.after(xid);
+                freeOverflow(overflow);
+            }
         } finally {
-            if (pg != null){
-                pIndex.add(pi.pgno,PageX.getFreeSpace(pg));
-            }else {
-                pIndex.add(pi.pgno,freeSpace);
+            di.release();
+        }
+        compactPage((int) (uid >>> 32));
+    }
+
+    /**
+     * 有效记录比例过低, 或有溢出页链尚未回收的失效记录时整理页面, 腾出的空间放回pIndex
+     * 缓存中未被引用的DataItem先淘汰, 仍被引用的失效记录跳过, 等下次整理;
+     * 整理掉的溢出记录随整理日志一起丢弃链的入口, 页锁释放后再回收它们的溢出页链
+     */
+    private void compactPage(int pgno) throws Exception {
+        if (slotted){
+            defragmentPage(pgno);
+            return;
+        }
+        Page pg = pc.getPage(pgno);
+        int usable;
+        List<Integer> overflows = new ArrayList<>();
+        try {
+            pg.lock();
+            try {
+                int used = PageX.getUsedSpace(pg);
+                if (PageX.isSpecial(pg) || used == 0
+                        || (PageX.getLiveSpace(pg) >= used * COMPACT_THRESHOLD && !PageX.hasPendingOverflow(pg))){
+                    return;
+                }
+                List<int[]> changes = new ArrayList<>();
+                byte[] image = PageX.compact(pg, off -> reclaimable(pg, off, Types.addressToUid(pgno, off), overflows), changes);
+                if (image == null){
+                    return;
+                }
+                logger.log(Recover.compactLog(pgno, false, pg.getData(), image, changes));
+                for (int[] c : changes){
+                    PageX.recoverUpdate(pg, Arrays.copyOfRange(image, c[0], c[0] + c[1]), c[0]);
+                }
+                holedPages.add(pgno);
+                usable = PageX.getUsableSpace(pg);
+            } finally {
+                pg.unlock();
+            }
+        } finally {
+            pg.release();
+        }
+        fsm.update(pgno, usable);
+        pIndex.offer(pgno, usable);
+        for (int overflow : overflows){
+            freeOverflow(overflow);
+        }
+    }
+
+    //失效记录未被引用时可以整理掉; 仍带溢出标记的记下链的入口, 整理后回收
+    private boolean reclaimable(Page pg, int offset, long uid, List<Integer> overflows) {
+        if (!evictIdle(uid)){
+            return false;
+        }
+        if (PageX.holdsOverflow(pg.getData()[offset])){
+            overflows.add(DataItem.firstOverflowPage(pg.getData(), offset));
+        }
+        return true;
+    }
+
+    /**
+     * 带槽目录页面的整理: 释放失效记录, 其余记录向记录区上界紧凑排列, 只记录改写过的区间
+     * 正被引用的DataItem(其SubArray指向当前位置, 可能正被修改)留在原处, 其余记录绕开它们移动,
+     * 驻留但未被引用的DataItem先淘汰; 缓存加载在页锁内查槽, 因此检查与整理期间不会有新的DataItem指向旧位置
+     */
+    private void defragmentPage(int pgno) throws Exception {
+        Page pg = pc.getPage(pgno);
+        int freeSpace;
+        List<Integer> overflows = new ArrayList<>();
+        try {
+            pg.lock();
+            try {
+                int used = PageSlotted.getUsedSpace(pg);
+                if (used == 0
+                        || (PageSlotted.getLiveSpace(pg) >= used * COMPACT_THRESHOLD && !PageSlotted.hasPendingOverflow(pg))){
+                    return;
+                }
+                List<int[]> changes = new ArrayList<>();
+                byte[] image = PageSlotted.defragment(pg,
+                        slot -> reclaimable(pg, PageSlotted.getSlotOffset(pg, slot), slotUid(pg, slot), overflows),
+                        slot -> !evictIdle(slotUid(pg, slot)), changes);
+                if (image == null){
+                    return;
+                }
+                logger.log(Recover.compactLog(pgno, true, pg.getData(), image, changes));
+                for (int[] c : changes){
+                    PageX.recoverUpdate(pg, Arrays.copyOfRange(image, c[0], c[0] + c[1]), c[0]);
+                }
+                freeSpace = PageSlotted.getFreeSpace(pg);
+            } finally {
+                pg.unlock();
             }
+        } finally {
+            pg.release();
+        }
+        fsm.update(pgno, freeSpace);
+        pIndex.offer(pgno, freeSpace);
+        for (int overflow : overflows){
+            freeOverflow(overflow);
         }
+    }
+
+    private static long slotUid(Page pg, int slot) {
+        return Types.slotToUid(pg.getPageNumber(), PageSlotted.getAddress(pg, slot));
+    }
+
+    @Override
+    public void prefetch(long uid) {
+        pc.prefetch((int) (uid >>> 32), 1);
+    }
+
+    @Override
+    public void resizeBufferPool(long memory) throws Exception {
+        pc.resize(memory);
+    }
 
+    @Override
+    public MemoryBudget getMemoryBudget() {
+        return pc.getMemoryBudget();
+    }
+
+    @Override
+    public String status() {
+        MemoryBudget budget = pc.getMemoryBudget();
+        return pc.status() + "dataitem_resident: " + residentCount() + "\n"
+                + "memory_budget: " + budget.getUsed() + "/" + budget.getLimit() + "\n";
     }
 
     @Override
     public void close() {
         super.close();
         logger.close();
+        PageOne.setPageCount(pageOne, pc.getPageNumber());
         PageOne.setVcClose(pageOne);
         pageOne.release();
         pc.close();
     }
 
     void initPageOne() {
-        int pgno = pc.newPage(PageOne.initRaw());
+        int pageFormat = PageOne.formatOf(format);
+        if (pageFormat < 0){
+            Panic.panic(Error.UnsupportedPageFormatException);
+        }
+        int pgno = pc.newPage(PageOne.initRaw(pc.getPageSize(), pc.getSegmentPages(), pageFormat));
         assert pgno == 1;
         try {
             pageOne = pc.getPage(pgno);
@@ -128,6 +633,8 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
             Panic.panic(e);
         }
         pc.flushPage(pageOne);
+        slotted = PageOne.getFormat(pageOne) == PageOne.FORMAT_SLOTTED;
+        fsm = new FreeSpaceMap(pc, pageOne);
     }
 
     boolean loadCheckPageOne(){
@@ -137,9 +644,22 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
         } catch (Exception e) {
             Panic.panic(e);
         }
+        int format = PageOne.getFormat(pageOne);
+        if (format != PageOne.FORMAT_LEGACY && format != PageOne.FORMAT_SLOTTED){
+            Panic.panic(Error.UnsupportedPageFormatException);
+        }
+        slotted = format == PageOne.FORMAT_SLOTTED;
         return PageOne.checkVc(pageOne);
     }
 
+    //文件按extent预分配, 尾部可能有未使用的空白页; 以上次正常关闭时记录的页数为准
+    void reconcilePageCount() {
+        int pageCount = PageOne.getPageCount(pageOne);
+        if (pageCount != 0 && Integer.compareUnsigned(pageCount, pc.getPageNumber()) < 0){
+            pc.truncateByBgno(pageCount);
+        }
+    }
+
     public void releaseDataItem(DataItemImpl di) {
         super.release(di.getUid());
     }
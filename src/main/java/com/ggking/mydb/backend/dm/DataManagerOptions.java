@@ -0,0 +1,29 @@
+package com.ggking.mydb.backend.dm;
+
+import com.ggking.mydb.backend.dm.pageCache.PageCache;
+
+/**
+ * DataManager及其页面缓存的可调参数, 由Launcher根据命令行填充
+ */
+public class DataManagerOptions {
+    //页面替换策略: clock, lru, 2q, lru2, tinylfu
+    public String policy = "clock";
+    //后台脏页写回线程的唤醒间隔
+    public long flushIntervalMs = 1000;
+    //以内存映射方式访问.db文件
+    public boolean mmap = false;
+    //顺序预读的页数, 0表示关闭
+    public int readAhead = 16;
+    //数据文件每次扩展的大小
+    public long extentSize = 4L << 20;
+    //页面大小, 只在创建数据库时生效, 之后以PageOne中记录的为准
+    public int pageSize = PageCache.PAGE_SIZE;
+    //插入亲和: 每个线程独占一个目标页直到写满, 并发插入落在不同页面上
+    public boolean insertAffinity = false;
+    //写回时以LZ4压缩页面(第一页除外), 适合大量冷数据; 读取总能识别压缩页, 关闭后已压缩的页面仍可读
+    public boolean compress = false;
+    //数据页格式: slotted(带槽目录, 记录可移动, 整理后槽可复用)或legacy(按偏移寻址, 整理只留墓碑); 只在创建数据库时生效
+    public String format = "slotted";
+    //数据文件每段的大小, 须为页面大小的整数倍, 0表示不分段; 只在创建数据库时生效, 不能与mmap同时使用
+    public long segmentSize = 0;
+}
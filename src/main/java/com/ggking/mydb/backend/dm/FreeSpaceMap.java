@@ -0,0 +1,163 @@
+package com.ggking.mydb.backend.dm;
+
+import com.ggking.mydb.backend.dm.page.Page;
+import com.ggking.mydb.backend.dm.page.PageFsm;
+import com.ggking.mydb.backend.dm.page.PageOne;
+import com.ggking.mydb.backend.dm.pageCache.PageCache;
+import com.ggking.mydb.backend.dm.pageIndex.PageIndex;
+import com.ggking.mydb.backend.utils.Panic;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 持久化的空闲空间映射
+ * 映射页组成以第一页中FSM_HEAD开头的链表, 第i个映射页记录页号[1 + i * capacity, 1 + (i + 1) * capacity)的剩余空间
+ * 由insert增量维护, 不写日志: 正常关闭时随脏页一起落盘, 打开时只需读映射页即可重建PageIndex;
+ * 异常退出后映射可能落后于数据页, 此时由Recover之后的全量扫描重建;
+ * 映射页的建立同样不写日志, 崩溃后可能是全0页, 也可能已落盘却不在链表中, 全量扫描时都改写为空数据页
+ */
+class FreeSpaceMap {
+
+    private PageCache pc;
+    private Page pageOne;
+    private int capacity;
+    //链表中映射页的页号, 下标即映射页序号
+    private List<Integer> chain;
+    private Lock lock;
+
+    FreeSpaceMap(PageCache pc, Page pageOne) {
+        this.pc = pc;
+        this.pageOne = pageOne;
+        this.capacity = PageFsm.capacity(pc.getPageSize());
+        this.chain = new ArrayList<>();
+        this.lock = new ReentrantLock();
+    }
+
+    /**
+     * 正常关闭后打开时, 沿链表读出各页剩余空间填入pIndex
+     * 链表不完整或不存在(旧版本数据库)时返回false, 由调用者全量扫描
+     */
+    boolean load(PageIndex pIndex) {
+        int pageNum = pc.getPageNumber();
+        if (!walk(pageNum)) {
+            return false;
+        }
+        long pages = Integer.toUnsignedLong(pageNum);
+        if ((long) chain.size() * capacity < pages) {
+            return false;
+        }
+        for (int i = 0; i < chain.size(); i++) {
+            Page pg = getPage(chain.get(i));
+            try {
+                long base = (long) i * capacity + 1;
+                for (int j = 0; j < capacity && base + j <= pages; j++) {
+                    int freeSpace = PageFsm.getFreeSpace(pg, j);
+                    if (freeSpace > 0) {
+                        pIndex.add((int) (base + j), freeSpace);
+                    }
+                }
+            } finally {
+                pg.release();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 全量扫描之前调用: 保留链表中仍然有效的映射页并清空其内容, 从第一个失效的页(被Recover截断等)处断开
+     */
+    void reset() {
+        walk(pc.getPageNumber());
+        if (chain.isEmpty()) {
+            PageOne.setFsmHead(pageOne, 0);
+            return;
+        }
+        for (int i = 0; i < chain.size(); i++) {
+            Page pg = getPage(chain.get(i));
+            try {
+                PageFsm.clear(pg);
+                if (i == chain.size() - 1) {
+                    PageFsm.setNext(pg, 0);
+                }
+            } finally {
+                pg.release();
+            }
+        }
+    }
+
+    //reset之后调用: 页面是否是链表中仍然有效的映射页
+    boolean isChained(int pgno) {
+        return chain.contains(pgno);
+    }
+
+    //沿链表收集有效的映射页, 遇到失效的页时停止; 返回链表是否完整
+    private boolean walk(int pageNum) {
+        chain.clear();
+        int pgno = PageOne.getFsmHead(pageOne);
+        while (pgno != 0) {
+            if (pgno == 1 || Integer.compareUnsigned(pgno, pageNum) > 0) {
+                return false;
+            }
+            Page pg = getPage(pgno);
+            try {
+                if (!PageFsm.isFsm(pg) || PageFsm.getBase(pg) != chain.size() * capacity + 1) {
+                    return false;
+                }
+                chain.add(pgno);
+                pgno = PageFsm.getNext(pg);
+            } finally {
+                pg.release();
+            }
+        }
+        return true;
+    }
+
+    void update(int pgno, int freeSpace) {
+        int idx = Integer.divideUnsigned(pgno - 1, capacity);
+        int fsmPgno = ensureCovered(idx);
+        Page pg = getPage(fsmPgno);
+        try {
+            PageFsm.setFreeSpace(pg, Integer.remainderUnsigned(pgno - 1, capacity), freeSpace);
+        } finally {
+            pg.release();
+        }
+    }
+
+    //映射页不够时在链表末尾追加
+    private int ensureCovered(int idx) {
+        lock.lock();
+        try {
+            while (chain.size() <= idx) {
+                int base = chain.size() * capacity + 1;
+                int pgno = pc.newPage(PageFsm.initRaw(pc.getPageSize(), base));
+                if (chain.isEmpty()) {
+                    PageOne.setFsmHead(pageOne, pgno);
+                } else {
+                    Page last = getPage(chain.get(chain.size() - 1));
+                    try {
+                        PageFsm.setNext(last, pgno);
+                    } finally {
+                        last.release();
+                    }
+                }
+                chain.add(pgno);
+            }
+            return chain.get(idx);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Page getPage(int pgno) {
+        Page pg = null;
+        try {
+            pg = pc.getPage(pgno);
+        } catch (Exception e) {
+            Panic.panic(e);
+        }
+        return pg;
+    }
+}
@@ -5,11 +5,15 @@ import com.ggking.mydb.backend.dm.dataItem.DataItem;
 import com.ggking.mydb.backend.dm.dataItem.DataItemImpl;
 import com.ggking.mydb.backend.dm.logger.Logger;
 import com.ggking.mydb.backend.dm.page.Page;
+import com.ggking.mydb.backend.dm.page.PageSlotted;
 import com.ggking.mydb.backend.dm.page.PageX;
 import com.ggking.mydb.backend.dm.pageCache.PageCache;
 import com.ggking.mydb.backend.tm.TransactionManager;
+import com.ggking.mydb.backend.tm.TransactionManagerImpl;
 import com.ggking.mydb.backend.utils.Panic;
 import com.ggking.mydb.backend.utils.Parser;
+import com.ggking.mydb.backend.utils.Types;
+import com.ggking.mydb.common.Error;
 import com.google.common.primitives.Bytes;
 
 import java.util.*;
@@ -17,6 +21,14 @@ import java.util.*;
 public class Recover {
     private static final byte LOG_TYPE_INSERT = 0;
     private static final byte LOG_TYPE_UPDATE = 1;
+    //批量插入: 格式与插入日志相同, Raw为同一页中连续的多个DataItem
+    private static final byte LOG_TYPE_INSERT_BATCH = 2;
+    //增量更新: 只记录DataItem中发生变化的字节段
+    private static final byte LOG_TYPE_UPDATE_DELTA = 3;
+    //带槽目录页面中的插入: 在插入日志的基础上记录第一个槽号, Raw可以是连续的多个DataItem
+    private static final byte LOG_TYPE_SLOT_INSERT = 4;
+    //带槽目录页面整理后的整页镜像, 由超级事务写出, 只重做
+    private static final byte LOG_TYPE_PAGE_IMAGE = 5;
 
     private static final int REDO = 0;
     private static final int UNDO = 1;
@@ -28,121 +40,138 @@ public class Recover {
     static class InsertLogInfo {
         long xid;
         int pgno;
-        short offset;
+        int offset;
         byte[] raw;
     }
 
     static class UpdateLogInfo {
         long xid;
         int pgno;
-        short offset;
+        int offset;
         byte[] oldRaw;
         byte[] newRaw;
     }
 
-    public static void  recover(TransactionManager tm, Logger lg, PageCache pc){
+    //slotted: 数据页是否为带槽目录的格式, 此时日志中的uid记录的是槽号, 需经页面的槽目录找到记录
+    public static void  recover(TransactionManager tm, Logger lg, PageCache pc, boolean slotted){
         System.out.println("Recovering......");
 
         lg.rewind();
-       int maxPgno = 0;
-       while (true){
-           byte[] log = lg.next();
-           if (log == null)break;
-           int pgno;
-           if (isInsertLog(log)){
-               InsertLogInfo li = parseInsertLog(log);
-               pgno = li.pgno;
-           }else {
-               UpdateLogInfo li = parseUpdateLog(log);
-               pgno = li.pgno;
-           }
-           if (pgno > maxPgno)maxPgno = pgno;
-           if (maxPgno == 0)maxPgno = 1;
-
-           pc.truncateByBgno(maxPgno);
-           System.out.println("Truncate to " + maxPgno + " pages.");
-
-           redoTranscations(tm, lg, pc);
-           System.out.println("Redo Transactions Over.");
+        int maxPgno = 0;
+        while (true){
+            byte[] log = lg.next();
+            if (log == null)break;
+            int pgno = logPgno(log);
+            if (Integer.compareUnsigned(pgno, maxPgno) > 0)maxPgno = pgno;
+        }
+        if (maxPgno == 0)maxPgno = 1;
 
-           undoTranscations(tm, lg, pc);
-           System.out.println("Undo Transactions Over.");
+        // 数据文件按extent预分配, 日志之外的页面都是未落盘的空白页, 一并截掉
+        pc.truncateByBgno(maxPgno);
+        System.out.println("Truncate to " + Integer.toUnsignedString(maxPgno) + " pages.");
 
-           System.out.println("Recovery Over.");
+        redoTranscations(tm, lg, pc, slotted);
+        System.out.println("Redo Transactions Over.");
 
-       }
+        undoTranscations(tm, lg, pc, slotted);
+        System.out.println("Undo Transactions Over.");
 
+        System.out.println("Recovery Over.");
     }
 
-    private static void redoTranscations(TransactionManager tm, Logger lg, PageCache pc) {
+    private static void redoTranscations(TransactionManager tm, Logger lg, PageCache pc, boolean slotted) {
         lg.rewind();
         while (true){
             byte[] log = lg.next();
             if (log == null)break;
-            if (isInsertLog(log)){
-                InsertLogInfo li = parseInsertLog(log);
-                long xid = li.xid;
-                if (!tm.isActive(xid)){
-                    doInsertLog(pc,log,REDO);
-                }
-            }else {
-                UpdateLogInfo li = parseUpdateLog(log);
-                long xid = li.xid;
-                if (!tm.isActive(xid)){
-                    doUpdateLog(pc,log,REDO);
-                }
+            if (!tm.isActive(logXid(log))){
+                doLog(pc,log,REDO,slotted);
             }
         }
     }
 
-    private static void undoTranscations(TransactionManager tm,Logger lg,PageCache pc){
+    private static void undoTranscations(TransactionManager tm,Logger lg,PageCache pc,boolean slotted){
         lg.rewind();
         Map<Long, List<byte[]>> logCache = new HashMap<>();
         while (true){
             byte[] log = lg.next();
             if (log == null)break;
-             if (isInsertLog(log)){
-                 InsertLogInfo li = parseInsertLog(log);
-                 long xid = li.xid;
-                 if (tm.isActive(xid)){
-                     if (!logCache.containsKey(xid)){
-                         logCache.put(xid,new ArrayList<>());
-                     }
-                     logCache.get(xid).add(log);
-                 }
-             }else {
-                 UpdateLogInfo li = parseUpdateLog(log);
-                 long xid = li.xid;
-                 if (tm.isActive(xid)){
-                     if (!logCache.containsKey(xid)){
-                         logCache.put(xid,new ArrayList<>());
-                     }
-                     logCache.get(xid).add(log);
-                 }
-             }
+            long xid = logXid(log);
+            if (tm.isActive(xid)){
+                if (!logCache.containsKey(xid)){
+                    logCache.put(xid,new ArrayList<>());
+                }
+                logCache.get(xid).add(log);
+            }
         }
 
         for (Map.Entry<Long,List<byte[]>> entry : logCache.entrySet()) {
             List<byte[]> logs = entry.getValue();
             for(int i = logs.size() - 1;i >= 0;i--){
-                byte[] log = logs.get(i);
-                if (isInsertLog(log)){
-                    doInsertLog(pc,log,UNDO);
-                }else {
-                    doUpdateLog(pc,log,UNDO);
-                }
+                doLog(pc,logs.get(i),UNDO,slotted);
             }
             tm.abort(entry.getKey());
         }
     }
     
+    //所有日志的XID都在同一位置
+    private static long logXid(byte[] log) {
+        return Parser.parseLong(log, OF_XID);
+    }
+
+    private static int logPgno(byte[] log) {
+        if (isInsertLog(log) || log[OF_TYPE] == LOG_TYPE_SLOT_INSERT || log[OF_TYPE] == LOG_TYPE_PAGE_IMAGE){
+            // 这几种日志的页号都紧跟在XID之后
+            return Parser.parseInt(Arrays.copyOfRange(log, OF_INSERT_PGNO, OF_INSERT_OFFSET));
+        }
+        // 更新日志与增量更新日志的UID在同一位置
+        long uid = Parser.parseLong(log, OF_UPDATE_UID);
+        return (int)((uid >>> 32) & ((1L << 32) - 1));
+    }
+
+    private static void doLog(PageCache pc, byte[] log, int flag, boolean slotted) {
+        switch (log[OF_TYPE]){
+            case LOG_TYPE_INSERT:
+            case LOG_TYPE_INSERT_BATCH:
+                doInsertLog(pc,log,flag);
+                break;
+            case LOG_TYPE_UPDATE:
+                doUpdateLog(pc,log,flag,slotted);
+                break;
+            case LOG_TYPE_UPDATE_DELTA:
+                doDeltaLog(pc,log,flag,slotted);
+                break;
+            case LOG_TYPE_SLOT_INSERT:
+                doSlotInsertLog(pc,log,flag);
+                break;
+            case LOG_TYPE_PAGE_IMAGE:
+                doPageImageLog(pc,log,flag);
+                break;
+            default:
+                Panic.panic(Error.BadLogFileException);
+        }
+    }
+
     // [LogType] [XID] [UID] [OldRaw] [NewRaw]
     private static final int OF_TYPE = 0;
     private static final int OF_XID = OF_TYPE+1;
     private static final int OF_UPDATE_UID = OF_XID+8;
     private static final int OF_UPDATE_RAW = OF_UPDATE_UID+8;
 
+    /**
+     * DataItem修改完成后的日志: 通常只记录发生变化的字节段;
+     * 改动分散到增量日志不比整条镜像小时, 退回记录前后镜像
+     */
     public static byte[] updateLog(long xid, DataItemImpl di) {
+        SubArray raw = di.getRaw();
+        byte[] delta = deltaLog(xid, di.getUid(), di.getOldRaw(), raw.raw, raw.start);
+        if (delta.length < OF_UPDATE_RAW + 2 * di.getOldRaw().length){
+            return delta;
+        }
+        return fullUpdateLog(xid, di);
+    }
+
+    private static byte[] fullUpdateLog(long xid, DataItemImpl di) {
         byte[] logTypeRaw = {LOG_TYPE_UPDATE};
         byte[] xidRaw = Parser.long2Byte(xid);
         byte[] uidRaw = Parser.long2Byte(di.getUid());
@@ -151,21 +180,121 @@ public class Recover {
         byte[] newRaw = Arrays.copyOfRange(raw.raw,raw.start,raw.end);
         return Bytes.concat(logTypeRaw,xidRaw,uidRaw,oldRaw,newRaw);
     }
-    private static void doUpdateLog(PageCache pc, byte[] log, int flag) {
-        int pgno;
-        short offset;
-        byte[] raw;
-        if (flag == REDO){
-            UpdateLogInfo li = parseUpdateLog(log);
-            pgno = li.pgno;
-            offset = li.offset;
-            raw = li.newRaw;
-        }else {
-            UpdateLogInfo li = parseUpdateLog(log);
-            pgno = li.pgno;
-            offset = li.offset;
-            raw = li.oldRaw;
+    private static void doUpdateLog(PageCache pc, byte[] log, int flag, boolean slotted) {
+        UpdateLogInfo li = parseUpdateLog(log);
+        byte[] raw = flag == REDO ? li.newRaw : li.oldRaw;
+
+        Page pg = null;
+        try {
+            pg = pc.getPage(li.pgno);
+        } catch (Exception e) {
+            Panic.panic(e);
+        }
+
+        try {
+            int offset = recordOffset(pg, li.offset, slotted);
+            if (offset < 0){
+                return;
+            }
+            PageX.recoverUpdate(pg,raw,offset);
+        } finally {
+            pg.release();
+        }
+    }
+
+    /**
+     * uid中的页内位置对应的记录偏移; 带槽目录的页面经槽目录查找, PAGE_ADDRESS指代整个页面(整理日志)
+     * 记录不在槽中(返回-1)只会出现在重做到比日志更新的页面上(记录已被整理掉或槽已复用),
+     * 随后的整理日志会覆盖这部分页面, 跳过即可
+     */
+    private static int recordOffset(Page pg, int position, boolean slotted) {
+        if (!slotted){
+            return position;
         }
+        if (position == PageSlotted.PAGE_ADDRESS){
+            return 0;
+        }
+        int offset = PageSlotted.getOffset(pg, position);
+        return offset == PageSlotted.EMPTY_SLOT ? -1 : offset;
+    }
+
+    // [LogType] [XID] [UID] [Range]*
+    // Range: [Offset]2字节 [Length]2字节 [OldBytes] [NewBytes], Offset相对于DataItem起始位置
+    private static final int OF_DELTA_RANGES = OF_UPDATE_UID+8;
+    private static final int LEN_DELTA_RANGE_HEADER = 4;
+    //两段变化之间相同的字节不超过此数时合并为一段, 省下一个段头
+    private static final int DELTA_MERGE_GAP = LEN_DELTA_RANGE_HEADER;
+
+    private static byte[] deltaLog(long xid, long uid, byte[] oldRaw, byte[] cur, int start) {
+        int n = oldRaw.length;
+        List<int[]> ranges = new ArrayList<>();
+        int i = 0;
+        while (i < n){
+            if (oldRaw[i] == cur[start + i]){
+                i++;
+                continue;
+            }
+            int s = i;
+            int e = i + 1;
+            while (true){
+                int j = e;
+                while (j < n && j - e < DELTA_MERGE_GAP && oldRaw[j] == cur[start + j]){
+                    j++;
+                }
+                if (j < n && j - e < DELTA_MERGE_GAP){
+                    e = j + 1;
+                }else {
+                    break;
+                }
+            }
+            ranges.add(new int[]{s, e});
+            i = e;
+        }
+        return deltaLog(xid, uid, ranges, oldRaw, 0, cur, start);
+    }
+
+    /**
+     * 页内整理日志: 借用增量更新的格式, UID指向页首(偏移0; 带槽目录的页面为PAGE_ADDRESS), 各段为整理改动过的页内区间
+     * 只记录整理实际改写的字节, 不与整页做差, 整理期间其他记录上的修改不会被日志带回旧值
+     * 由超级事务写出, 恢复时只重做不撤销
+     */
+    public static byte[] compactLog(int pgno, boolean slotted, byte[] oldPage, byte[] newPage, List<int[]> changes) {
+        List<int[]> ranges = new ArrayList<>(changes.size());
+        for (int[] c : changes){
+            ranges.add(new int[]{c[0], c[0] + c[1]});
+        }
+        long uid = slotted ? Types.slotToUid(pgno, PageSlotted.PAGE_ADDRESS) : Types.addressToUid(pgno, 0);
+        return deltaLog(TransactionManagerImpl.SUPER_XID, uid, ranges, oldPage, 0, newPage, 0);
+    }
+
+    //ranges为[起始, 结束)的相对偏移, 旧值取自oldRaw, 新值取自cur
+    private static byte[] deltaLog(long xid, long uid, List<int[]> ranges, byte[] oldRaw, int oldStart, byte[] cur, int start) {
+        int size = OF_DELTA_RANGES;
+        for (int[] r : ranges){
+            size += LEN_DELTA_RANGE_HEADER + 2 * (r[1] - r[0]);
+        }
+        byte[] log = new byte[size];
+        log[OF_TYPE] = LOG_TYPE_UPDATE_DELTA;
+        System.arraycopy(Parser.long2Byte(xid), 0, log, OF_XID, 8);
+        System.arraycopy(Parser.long2Byte(uid), 0, log, OF_UPDATE_UID, 8);
+        int pos = OF_DELTA_RANGES;
+        for (int[] r : ranges){
+            int len = r[1] - r[0];
+            System.arraycopy(Parser.short2Byte((short) r[0]), 0, log, pos, 2);
+            System.arraycopy(Parser.short2Byte((short) len), 0, log, pos + 2, 2);
+            pos += LEN_DELTA_RANGE_HEADER;
+            System.arraycopy(oldRaw, oldStart + r[0], log, pos, len);
+            pos += len;
+            System.arraycopy(cur, start + r[0], log, pos, len);
+            pos += len;
+        }
+        return log;
+    }
+
+    private static void doDeltaLog(PageCache pc, byte[] log, int flag, boolean slotted) {
+        long uid = Parser.parseLong(log, OF_UPDATE_UID);
+        int position = (int) uid;
+        int pgno = (int)((uid >>> 32) & ((1L << 32) - 1));
 
         Page pg = null;
         try {
@@ -175,7 +304,19 @@ public class Recover {
         }
 
         try {
-            PageX.recoverUpdate(pg,raw,offset);
+            int offset = recordOffset(pg, position, slotted);
+            if (offset < 0){
+                return;
+            }
+            int pos = OF_DELTA_RANGES;
+            while (pos + LEN_DELTA_RANGE_HEADER <= log.length){
+                int off = Parser.parseShort(Arrays.copyOfRange(log, pos, pos + 2)) & 0xFFFF;
+                int len = Parser.parseShort(Arrays.copyOfRange(log, pos + 2, pos + 4)) & 0xFFFF;
+                pos += LEN_DELTA_RANGE_HEADER;
+                int from = flag == REDO ? pos + len : pos;
+                PageX.recoverUpdate(pg, Arrays.copyOfRange(log, from, from + len), offset + off);
+                pos += 2 * len;
+            }
         } finally {
             pg.release();
         }
@@ -185,7 +326,7 @@ public class Recover {
         UpdateLogInfo li = new UpdateLogInfo();
         li.xid = Parser.parseLong(Arrays.copyOfRange(log,OF_XID,OF_UPDATE_UID));
         long uid = Parser.parseLong(Arrays.copyOfRange(log, OF_UPDATE_UID, OF_UPDATE_RAW));
-        li.offset = (short)(uid & ((1L << 16) - 1));
+        li.offset = (int) uid;
         uid >>>= 32;
         li.pgno = (int)(uid & ((1L << 32) - 1));
         int length = (log.length - OF_UPDATE_RAW);
@@ -201,10 +342,27 @@ public class Recover {
     private static final int OF_INSERT_RAW = OF_INSERT_OFFSET+2;
 
     public static byte[] insertLog(long xid, Page pg, byte[] raw) {
-        byte[] logTypeRaw = {LOG_TYPE_INSERT};
+        return insertLog(LOG_TYPE_INSERT, xid, pg, raw);
+    }
+
+    public static byte[] insertBatchLog(long xid, Page pg, byte[] raw) {
+        return insertLog(LOG_TYPE_INSERT_BATCH, xid, pg, raw);
+    }
+
+    //放入页内整理留下的空闲区时, 写入位置不是FSO, 由调用者给出
+    public static byte[] insertLog(long xid, int pgno, int offset, byte[] raw) {
+        return insertLog(LOG_TYPE_INSERT, xid, pgno, offset, raw);
+    }
+
+    private static byte[] insertLog(byte logType, long xid, Page pg, byte[] raw) {
+        return insertLog(logType, xid, pg.getPageNumber(), PageX.getFSO(pg), raw);
+    }
+
+    private static byte[] insertLog(byte logType, long xid, int pgno, int offset, byte[] raw) {
+        byte[] logTypeRaw = {logType};
         byte[] xidRaw = Parser.long2Byte(xid);
-        byte[] pgnoRaw = Parser.int2Byte(pg.getPageNumber());
-        byte[] offsetRaw = Parser.short2Byte(PageX.getFSO(pg));
+        byte[] pgnoRaw = Parser.int2Byte(pgno);
+        byte[] offsetRaw = Parser.short2Byte((short) offset);
 
         return Bytes.concat(logTypeRaw,xidRaw,pgnoRaw,offsetRaw,raw);
     }
@@ -219,7 +377,11 @@ public class Recover {
         }
         try {
             if (flag == UNDO){
-                DataItem.setDataItemRawInvalid(li.raw);
+                if (log[OF_TYPE] == LOG_TYPE_INSERT_BATCH){
+                    DataItem.setDataItemsRawInvalid(li.raw);
+                }else {
+                    DataItem.setDataItemRawInvalid(li.raw);
+                }
             }
             PageX.recoverInsert(pg,li.raw,li.offset);
         } finally {
@@ -227,16 +389,78 @@ public class Recover {
         }
     }
 
+    // [LogType] [XID] [Pgno] [Offset] [Address] [Raw]
+    private static final int OF_SLOT_INSERT_ADDRESS = OF_INSERT_RAW;
+    private static final int OF_SLOT_INSERT_RAW = OF_SLOT_INSERT_ADDRESS+4;
+
+    //记录将放在DataStart之前, 页内位置(槽号与代数)由PageSlotted.nextAddress给出
+    public static byte[] slotInsertLog(long xid, Page pg, byte[] raw) {
+        byte[] logTypeRaw = {LOG_TYPE_SLOT_INSERT};
+        byte[] xidRaw = Parser.long2Byte(xid);
+        byte[] pgnoRaw = Parser.int2Byte(pg.getPageNumber());
+        byte[] offsetRaw = Parser.short2Byte((short) (PageSlotted.getDataStart(pg) - raw.length));
+        byte[] addressRaw = Parser.int2Byte(PageSlotted.nextAddress(pg, raw));
+        return Bytes.concat(logTypeRaw,xidRaw,pgnoRaw,offsetRaw,addressRaw,raw);
+    }
+
+    private static void doSlotInsertLog(PageCache pc, byte[] log, int flag) {
+        int pgno = Parser.parseInt(Arrays.copyOfRange(log, OF_INSERT_PGNO, OF_INSERT_OFFSET));
+        int offset = Parser.parseShort(Arrays.copyOfRange(log, OF_INSERT_OFFSET, OF_INSERT_RAW)) & 0xFFFF;
+        int address = Parser.parseInt(Arrays.copyOfRange(log, OF_SLOT_INSERT_ADDRESS, OF_SLOT_INSERT_RAW));
+        byte[] raw = Arrays.copyOfRange(log, OF_SLOT_INSERT_RAW, log.length);
+
+        Page pg = null;
+        try {
+            pg = pc.getPage(pgno);
+        } catch (Exception e) {
+            Panic.panic(e);
+        }
+        try {
+            if (flag == UNDO){
+                DataItem.setDataItemsRawInvalid(raw);
+            }
+            PageSlotted.recoverInsert(pg, raw, offset, address);
+        } finally {
+            pg.release();
+        }
+    }
+
+    // [LogType] [XID] [Pgno] [Image]
+    public static byte[] pageImageLog(int pgno, byte[] image) {
+        byte[] logTypeRaw = {LOG_TYPE_PAGE_IMAGE};
+        byte[] xidRaw = Parser.long2Byte(TransactionManagerImpl.SUPER_XID);
+        byte[] pgnoRaw = Parser.int2Byte(pgno);
+        return Bytes.concat(logTypeRaw,xidRaw,pgnoRaw,image);
+    }
+
+    private static void doPageImageLog(PageCache pc, byte[] log, int flag) {
+        if (flag == UNDO){
+            return;
+        }
+        int pgno = Parser.parseInt(Arrays.copyOfRange(log, OF_INSERT_PGNO, OF_INSERT_OFFSET));
+        Page pg = null;
+        try {
+            pg = pc.getPage(pgno);
+        } catch (Exception e) {
+            Panic.panic(e);
+        }
+        try {
+            PageX.recoverUpdate(pg, Arrays.copyOfRange(log, OF_INSERT_OFFSET, log.length), 0);
+        } finally {
+            pg.release();
+        }
+    }
+
     private static InsertLogInfo parseInsertLog(byte[] log) {
         InsertLogInfo li = new InsertLogInfo();
         li.xid = Parser.parseLong(Arrays.copyOfRange(log, OF_XID, OF_INSERT_PGNO));
         li.pgno = Parser.parseInt(Arrays.copyOfRange(log, OF_INSERT_PGNO, OF_INSERT_OFFSET));
-        li.offset = Parser.parseShort(Arrays.copyOfRange(log, OF_INSERT_OFFSET, OF_INSERT_RAW));
+        li.offset = Parser.parseShort(Arrays.copyOfRange(log, OF_INSERT_OFFSET, OF_INSERT_RAW)) & 0xFFFF;
         li.raw = Arrays.copyOfRange(log, OF_INSERT_RAW, log.length);
         return li;
     }
 
     private static boolean isInsertLog(byte[] log) {
-         return log[0] == LOG_TYPE_INSERT;
+         return log[0] == LOG_TYPE_INSERT || log[0] == LOG_TYPE_INSERT_BATCH;
     }
 }
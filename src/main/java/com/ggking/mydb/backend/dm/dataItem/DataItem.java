@@ -8,10 +8,17 @@ import com.ggking.mydb.backend.utils.Parser;
 import com.ggking.mydb.backend.utils.Types;
 import com.google.common.primitives.Bytes;
 
+import java.io.InputStream;
 import java.util.Arrays;
 
 public interface DataItem {
     SubArray data();
+    //是否为溢出记录, 此时data()只含页内前缀
+    boolean isOverflow();
+    //完整数据的长度
+    int dataLength();
+    //按顺序读出完整数据, 溢出部分按需逐页读取
+    InputStream openStream();
 
     void before();
     void unBefore();
@@ -32,16 +39,62 @@ public interface DataItem {
         byte[] size = Parser.short2Byte((short) raw.length);
         return Bytes.concat(valid,size,raw);
     }
-    public static DataItem parseDataItem(Page pg, short offset, DataManagerImpl dm){
+    //溢出记录的页内部分: 前缀之后的数据已写入从firstPgno开始的溢出页链
+    public static byte[] wrapOverflowRaw(byte[] data, int prefixLength, int firstPgno){
+        byte[] valid = {(byte) DataItemImpl.FLAG_OVERFLOW};
+        byte[] size = Parser.short2Byte((short) (DataItemImpl.LEN_OVERFLOW_HEADER + prefixLength));
+        return Bytes.concat(valid, size, Parser.int2Byte(data.length), Parser.int2Byte(firstPgno),
+                Arrays.copyOfRange(data, 0, prefixLength));
+    }
+
+    public static DataItem parseDataItem(Page pg, int offset, DataManagerImpl dm){
+        return parseDataItem(pg, offset, Types.addressToUid(pg.getPageNumber(),offset), dm);
+    }
+
+    //带槽目录的页面中uid记录的是槽号, 与记录所在的偏移不同
+    public static DataItem parseDataItem(Page pg, int offset, long uid, DataManagerImpl dm){
         byte[] raw = pg.getData();
-        short size = Parser.parseShort(Arrays.copyOfRange(raw, offset + DataItemImpl.OF_SIZE, offset + DataItemImpl.OF_DATA));
-        short length = (short) (size + DataItemImpl.OF_DATA);
-        long uid = Types.addressToUid(pg.getPageNumber(),offset);
-        return new DataItemImpl(new SubArray(raw,offset,offset + length),new byte[length],pg,uid,dm);
+        int size = Parser.parseShort(Arrays.copyOfRange(raw, offset + DataItemImpl.OF_SIZE, offset + DataItemImpl.OF_DATA)) & 0xFFFF;
+        int length = size + DataItemImpl.OF_DATA;
+        return new DataItemImpl(new SubArray(raw,offset,offset + length),pg,uid,dm);
     }
 
+    //空槽: 记录已被整理掉, 返回一个不在页面中的无效DataItem, 仍持有页面引用以便统一释放
+    public static DataItem emptySlotDataItem(Page pg, long uid, DataManagerImpl dm){
+        byte[] raw = wrapDataItemRaw(new byte[0]);
+        setDataItemRawInvalid(raw);
+        return new DataItemImpl(new SubArray(raw, 0, raw.length), pg, uid, dm);
+    }
+
+    //只置失效位, 保留溢出标记
     public static void setDataItemRawInvalid(byte[] raw){
-        raw[DataItemImpl.OF_VALID] = (byte) 1;
+        raw[DataItemImpl.OF_VALID] |= (byte) 1;
+    }
+
+    //在缓存中的DataItem上置为无效, 调用者需在before/after之间调用
+    public static void setDataItemRawInvalid(SubArray raw){
+        raw.raw[raw.start + DataItemImpl.OF_VALID] |= (byte) 1;
+    }
+
+    //去掉溢出标记: 溢出页链即将回收, 之后整理可以直接丢弃这条失效记录; 调用者需在before/after之间调用
+    public static void clearOverflowFlag(SubArray raw){
+        raw.raw[raw.start + DataItemImpl.OF_VALID] &= (byte) ~DataItemImpl.FLAG_OVERFLOW;
+    }
+
+    //页面中offset处溢出记录的溢出页链入口
+    public static int firstOverflowPage(byte[] raw, int offset){
+        int off = offset + DataItemImpl.OF_DATA + 4;
+        return Parser.parseInt(Arrays.copyOfRange(raw, off, off + 4));
+    }
+
+    //raw由若干连续的DataItem组成(批量插入), 逐个置为无效
+    public static void setDataItemsRawInvalid(byte[] raw){
+        int pos = 0;
+        while (pos + DataItemImpl.OF_DATA <= raw.length) {
+            raw[pos + DataItemImpl.OF_VALID] |= (byte) 1;
+            int size = Parser.parseShort(Arrays.copyOfRange(raw, pos + DataItemImpl.OF_SIZE, pos + DataItemImpl.OF_DATA)) & 0xFFFF;
+            pos += DataItemImpl.OF_DATA + size;
+        }
     }
 
 }
@@ -3,6 +3,11 @@ package com.ggking.mydb.backend.dm.dataItem;
 import com.ggking.mydb.backend.common.SubArray;
 import com.ggking.mydb.backend.dm.DataManagerImpl;
 import com.ggking.mydb.backend.dm.page.Page;
+import com.ggking.mydb.backend.utils.Parser;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.Arrays;
 
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
@@ -12,8 +17,12 @@ public class DataItemImpl implements DataItem{
     static final int OF_VALID = 0;
     static final int OF_SIZE = 1;
     static final int OF_DATA = 3;
+    //溢出记录: ValidFlag最高位置1, 数据为 [DataLength]4字节 [FirstPgno]4字节 [Prefix], 其余部分在溢出页链中
+    static final int FLAG_OVERFLOW = 0x80;
+    static final int LEN_OVERFLOW_HEADER = 8;
 
     private SubArray raw;
+    //修改前的副本, 只在before与after/unBefore之间存在, 驻留在缓存中的DataItem不保留它
     private byte[] oldRaw;
     private DataManagerImpl dm;
     private long uid;
@@ -21,10 +30,9 @@ public class DataItemImpl implements DataItem{
     private Lock rLock;
     private Lock wLock;
 
-    public DataItemImpl(SubArray raw,byte[] oldRaw,Page pg,long uid,DataManagerImpl dm){
+    public DataItemImpl(SubArray raw,Page pg,long uid,DataManagerImpl dm){
     this.dm = dm;
     this.raw = raw;
-    this.oldRaw = oldRaw;
     this.pg = pg;
     this.uid = uid;
         ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
@@ -32,28 +40,69 @@ public class DataItemImpl implements DataItem{
         wLock = lock.writeLock();
     }
 
-    public boolean isValid(){return raw.raw[raw.start + OF_VALID] == (byte) 0;}
+    public boolean isValid(){return (raw.raw[raw.start + OF_VALID] & 0xFF & ~FLAG_OVERFLOW) == 0;}
+
+    @Override
+    public boolean isOverflow(){
+        return (raw.raw[raw.start + OF_VALID] & FLAG_OVERFLOW) != 0;
+    }
+
+    //溢出记录只返回页内前缀
     @Override
     public SubArray data() {
-        return new SubArray(raw.raw,raw.start + OF_DATA,raw.end);
+        int start = raw.start + OF_DATA + (isOverflow() ? LEN_OVERFLOW_HEADER : 0);
+        return new SubArray(raw.raw,start,raw.end);
+    }
+
+    @Override
+    public int dataLength() {
+        if (!isOverflow()){
+            return raw.end - raw.start - OF_DATA;
+        }
+        return Parser.parseInt(Arrays.copyOfRange(raw.raw, raw.start + OF_DATA, raw.start + OF_DATA + 4));
+    }
+
+    public int firstOverflowPage() {
+        int off = raw.start + OF_DATA + 4;
+        return Parser.parseInt(Arrays.copyOfRange(raw.raw, off, off + 4));
+    }
+
+    //前缀在调用时拷贝, 调用者需持有读锁; 溢出页不会被修改, 随读随取
+    @Override
+    public InputStream openStream() {
+        SubArray sa = data();
+        byte[] prefix = Arrays.copyOfRange(sa.raw, sa.start, sa.end);
+        if (!isOverflow()){
+            return new ByteArrayInputStream(prefix);
+        }
+        return new OverflowInputStream(dm, prefix, firstOverflowPage());
     }
 
     @Override
     public void before() {
         wLock.lock();
+        // 日志在after中才写出, 修改期间后台写回跳过该页, 未写日志的修改不会先于日志落盘
+        pg.beginUpdate();
         pg.setDirty(true);
-        System.arraycopy(raw.raw,raw.start,oldRaw,0,oldRaw.length);
+        oldRaw = Arrays.copyOfRange(raw.raw, raw.start, raw.end);
     }
 
     @Override
     public void unBefore() {
         System.arraycopy(oldRaw,0,raw.raw,raw.start,oldRaw.length);
+        oldRaw = null;
+        pg.setDirty(true);
+        pg.endUpdate();
         wLock.unlock();
     }
 
     @Override
     public void after(long xid) {
         dm.logDataItem(xid,this);
+        oldRaw = null;
+        // 修改期间后台写回可能已清掉脏位, 修改完成后再次置脏
+        pg.setDirty(true);
+        pg.endUpdate();
         wLock.unlock();
     }
 
@@ -0,0 +1,70 @@
+package com.ggking.mydb.backend.dm.dataItem;
+
+import com.ggking.mydb.backend.dm.DataManagerImpl;
+import com.ggking.mydb.backend.dm.page.Page;
+import com.ggking.mydb.backend.dm.page.PageOverflow;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * 溢出记录的读取流: 先读页内前缀, 再沿溢出页链逐页读取, 同一时刻只持有一页的数据
+ */
+class OverflowInputStream extends InputStream {
+
+    private DataManagerImpl dm;
+    private byte[] buf;
+    private int pos;
+    private int next;
+
+    OverflowInputStream(DataManagerImpl dm, byte[] prefix, int firstPgno) {
+        this.dm = dm;
+        this.buf = prefix;
+        this.next = firstPgno;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!fill()) {
+            return -1;
+        }
+        return buf[pos++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!fill()) {
+            return -1;
+        }
+        int n = Math.min(len, buf.length - pos);
+        System.arraycopy(buf, pos, b, off, n);
+        pos += n;
+        return n;
+    }
+
+    //当前页已读完时取下一页, 链表结束时返回false
+    private boolean fill() throws IOException {
+        while (pos == buf.length) {
+            if (next == 0) {
+                return false;
+            }
+            Page pg;
+            try {
+                pg = dm.getOverflowPage(next);
+            } catch (Exception e) {
+                throw new IOException(e);
+            }
+            try {
+                buf = PageOverflow.getChunk(pg);
+                next = PageOverflow.getNext(pg);
+            } finally {
+                pg.release();
+            }
+            pos = 0;
+        }
+        return true;
+    }
+}
@@ -8,4 +8,10 @@ public interface Page {
     boolean isDirty();
     int getPageNumber();
     byte[] getData();
+    //DataItem修改期间(before到after/unBefore)持有; 修改在after中才写日志, 期间页面不能被写回
+    void beginUpdate();
+    void endUpdate();
+    //写回拷贝页面之前调用, 有修改正在进行时返回false, 此时跳过该页
+    boolean tryLockSnapshot();
+    void unlockSnapshot();
 }
@@ -0,0 +1,67 @@
+package com.ggking.mydb.backend.dm.page;
+
+import com.ggking.mydb.backend.utils.Parser;
+
+import java.util.Arrays;
+
+/**
+ * 空闲空间映射页
+ * [0xFFFF]2字节 [KIND_FSM]1字节 [NextPgno]4字节 [BasePgno]4字节 [Entry]1字节 * N
+ * 第i个Entry记录页号BasePgno + i的数据页的剩余空间, 以pageSize / 256为单位向下取整;
+ * 只会低估剩余空间, 按它挑选的页面一定放得下. 特殊页与第一页的Entry保持为0
+ */
+public class PageFsm {
+
+    private static final int OF_NEXT = 3;
+    private static final int OF_BASE = OF_NEXT + 4;
+    private static final int OF_ENTRIES = OF_BASE + 4;
+
+    public static byte[] initRaw(int pageSize, int base){
+        byte[] raw = PageX.initSpecialRaw(pageSize, PageX.KIND_FSM);
+        System.arraycopy(Parser.int2Byte(base), 0, raw, OF_BASE, 4);
+        return raw;
+    }
+
+    //每个映射页能记录的数据页数
+    public static int capacity(int pageSize){
+        return pageSize - OF_ENTRIES;
+    }
+
+    public static int unit(int pageSize){
+        return pageSize >> 8;
+    }
+
+    public static boolean isFsm(Page pg){
+        return PageX.isSpecial(pg) && PageX.getKind(pg) == PageX.KIND_FSM;
+    }
+
+    public static int getNext(Page pg){
+        return Parser.parseInt(Arrays.copyOfRange(pg.getData(), OF_NEXT, OF_NEXT + 4));
+    }
+
+    public static void setNext(Page pg, int next){
+        System.arraycopy(Parser.int2Byte(next), 0, pg.getData(), OF_NEXT, 4);
+        pg.setDirty(true);
+    }
+
+    public static int getBase(Page pg){
+        return Parser.parseInt(Arrays.copyOfRange(pg.getData(), OF_BASE, OF_BASE + 4));
+    }
+
+    public static int getFreeSpace(Page pg, int idx){
+        int pageSize = pg.getData().length;
+        return (pg.getData()[OF_ENTRIES + idx] & 0xFF) * unit(pageSize);
+    }
+
+    public static void setFreeSpace(Page pg, int idx, int freeSpace){
+        int pageSize = pg.getData().length;
+        int units = Math.min(0xFF, Math.max(0, freeSpace) / unit(pageSize));
+        pg.getData()[OF_ENTRIES + idx] = (byte) units;
+        pg.setDirty(true);
+    }
+
+    public static void clear(Page pg){
+        Arrays.fill(pg.getData(), OF_ENTRIES, pg.getData().length, (byte) 0);
+        pg.setDirty(true);
+    }
+}
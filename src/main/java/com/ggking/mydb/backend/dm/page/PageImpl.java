@@ -4,13 +4,16 @@ import com.ggking.mydb.backend.dm.pageCache.PageCache;
 
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 public class PageImpl implements Page{
 
     private int pageNumber;
     private byte[] data;
-    private boolean dirty;
+    private volatile boolean dirty;
     private Lock lock;
+    //读锁计进行中的修改, 同一页上的多个修改可以同时进行; 写锁只在写回拷贝页面时短暂持有
+    private ReentrantReadWriteLock updateLock;
     private PageCache pc;
 
     public PageImpl(int pageNumber, byte[] data, PageCache pc){
@@ -18,6 +21,7 @@ public class PageImpl implements Page{
         this.data = data;
         this.pc = pc;
         lock = new ReentrantLock();
+        updateLock = new ReentrantReadWriteLock();
     }
 
     @Override
@@ -45,6 +49,26 @@ public class PageImpl implements Page{
         return dirty;
     }
 
+    @Override
+    public void beginUpdate() {
+        updateLock.readLock().lock();
+    }
+
+    @Override
+    public void endUpdate() {
+        updateLock.readLock().unlock();
+    }
+
+    @Override
+    public boolean tryLockSnapshot() {
+        return updateLock.writeLock().tryLock();
+    }
+
+    @Override
+    public void unlockSnapshot() {
+        updateLock.writeLock().unlock();
+    }
+
     @Override
     public int getPageNumber() {
         return pageNumber;
@@ -1,6 +1,6 @@
 package com.ggking.mydb.backend.dm.page;
 
-import com.ggking.mydb.backend.dm.pageCache.PageCache;
+import com.ggking.mydb.backend.utils.Parser;
 import com.ggking.mydb.backend.utils.RandomUtil;
 
 import java.util.Arrays;
@@ -9,9 +9,36 @@ public class PageOne {
 
     private static final int OF_VC = 100;
     private static final int LEN_VC = 8;
+    //正常关闭时的数据文件页数, 0表示未记录(旧版本数据库)
+    private static final int OF_PAGE_COUNT = OF_VC + 2 * LEN_VC;
+    //创建数据库时选定的页面大小, 0表示旧版本的默认大小; 打开数据库时需在建立页面缓存之前读取
+    public static final int OF_PAGE_SIZE = OF_PAGE_COUNT + 4;
+    //空闲空间映射页链表的第一页, 0表示尚未建立
+    private static final int OF_FSM_HEAD = OF_PAGE_SIZE + 4;
+    //数据页格式, 0为旧版本按偏移寻址的页面, 1为带槽目录的页面(PageSlotted)
+    private static final int OF_FORMAT = OF_FSM_HEAD + 4;
+    //数据文件每段的页数, 0表示不分段(单个.db文件); 与页面大小一样需在建立页面缓存之前读取
+    public static final int OF_SEGMENT_PAGES = OF_FORMAT + 4;
 
-    public static byte[] initRaw(){
-        byte[] raw = new byte[PageCache.PAGE_SIZE];
+    public static final int FORMAT_LEGACY = 0;
+    public static final int FORMAT_SLOTTED = 1;
+
+    //按名称取数据页格式: legacy或slotted, 不认识的名称返回-1
+    public static int formatOf(String name){
+        if ("legacy".equals(name)){
+            return FORMAT_LEGACY;
+        }
+        if ("slotted".equals(name)){
+            return FORMAT_SLOTTED;
+        }
+        return -1;
+    }
+
+    public static byte[] initRaw(int pageSize, int segmentPages, int format){
+        byte[] raw = new byte[pageSize];
+        System.arraycopy(Parser.int2Byte(pageSize), 0, raw, OF_PAGE_SIZE, 4);
+        System.arraycopy(Parser.int2Byte(format), 0, raw, OF_FORMAT, 4);
+        System.arraycopy(Parser.int2Byte(segmentPages), 0, raw, OF_SEGMENT_PAGES, 4);
         setVcOpen(raw);
         return raw;
     }
@@ -42,4 +69,26 @@ public class PageOne {
         return Arrays.equals(Arrays.copyOfRange(raw, OF_VC, OF_VC+LEN_VC), Arrays.copyOfRange(raw, OF_VC+LEN_VC, OF_VC+2*LEN_VC));
     }
 
+    public static void setPageCount(Page pg, int pageCount){
+        pg.setDirty(true);
+        System.arraycopy(Parser.int2Byte(pageCount), 0, pg.getData(), OF_PAGE_COUNT, 4);
+    }
+
+    public static void setFsmHead(Page pg, int pgno){
+        System.arraycopy(Parser.int2Byte(pgno), 0, pg.getData(), OF_FSM_HEAD, 4);
+        pg.setDirty(true);
+    }
+
+    public static int getFsmHead(Page pg){
+        return Parser.parseInt(Arrays.copyOfRange(pg.getData(), OF_FSM_HEAD, OF_FSM_HEAD + 4));
+    }
+
+    public static int getFormat(Page pg){
+        return Parser.parseInt(Arrays.copyOfRange(pg.getData(), OF_FORMAT, OF_FORMAT + 4));
+    }
+
+    public static int getPageCount(Page pg){
+        return Parser.parseInt(Arrays.copyOfRange(pg.getData(), OF_PAGE_COUNT, OF_PAGE_COUNT + 4));
+    }
+
 }
@@ -0,0 +1,45 @@
+package com.ggking.mydb.backend.dm.page;
+
+import com.ggking.mydb.backend.utils.Parser;
+
+import java.util.Arrays;
+
+/**
+ * 溢出页, 存放超过一页的记录在页内前缀之后的部分, 同一记录的溢出页组成单向链表
+ * [0xFFFF]2字节 [KIND_OVERFLOW]1字节 [NextPgno]4字节 [Length]2字节 [Chunk]
+ * 溢出页写出后不再修改, 记录释放时整页改写为空数据页
+ */
+public class PageOverflow {
+
+    private static final int OF_NEXT = 3;
+    private static final int OF_LENGTH = OF_NEXT + 4;
+    private static final int OF_CHUNK = OF_LENGTH + 2;
+
+    //data[from, to)写入新溢出页, next为链表中的下一页, 0表示最后一页
+    public static byte[] initRaw(int pageSize, int next, byte[] data, int from, int to){
+        byte[] raw = PageX.initSpecialRaw(pageSize, PageX.KIND_OVERFLOW);
+        System.arraycopy(Parser.int2Byte(next), 0, raw, OF_NEXT, 4);
+        System.arraycopy(Parser.short2Byte((short) (to - from)), 0, raw, OF_LENGTH, 2);
+        System.arraycopy(data, from, raw, OF_CHUNK, to - from);
+        return raw;
+    }
+
+    //每个溢出页能存放的字节数
+    public static int capacity(int pageSize){
+        return Math.min(pageSize - OF_CHUNK, 0xFFFF);
+    }
+
+    public static boolean isOverflow(Page pg){
+        return PageX.isSpecial(pg) && PageX.getKind(pg) == PageX.KIND_OVERFLOW;
+    }
+
+    public static int getNext(Page pg){
+        return Parser.parseInt(Arrays.copyOfRange(pg.getData(), OF_NEXT, OF_NEXT + 4));
+    }
+
+    public static byte[] getChunk(Page pg){
+        byte[] raw = pg.getData();
+        int length = Parser.parseShort(Arrays.copyOfRange(raw, OF_LENGTH, OF_CHUNK)) & 0xFFFF;
+        return Arrays.copyOfRange(raw, OF_CHUNK, OF_CHUNK + length);
+    }
+}
@@ -0,0 +1,262 @@
+package com.ggking.mydb.backend.dm.page;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.IntPredicate;
+
+/**
+ * 带槽目录的数据页
+ * [DataStart]2字节 [SlotCount]2字节 [Slot0][Slot1]... ...空闲... [DataItem]...[DataItem]
+ * 每个槽为 [Offset]2字节 [Generation]2字节
+ * 槽目录从页头向后增长, 记录从记录区上界向前增长; uid中的页内位置为 [Generation]16位 [Slot]16位,
+ * 槽中存记录的偏移, 整理时记录可以在页内移动, 只改写槽, 索引中的uid不受影响
+ * 失效记录被整理掉后槽的偏移置0, 代数保留; 单条插入优先复用空槽并把代数加一, 索引中残留的旧uid
+ * 代数对不上, 读到的仍是空槽; 槽目录因此不超过页面同时容纳过的记录数
+ * 记录区上界为页尾, 页面最大32KB, DataStart不会等于特殊页标记0xFFFF
+ */
+public class PageSlotted {
+
+    private static final int OF_DATA_START = 0;
+    private static final int OF_SLOT_COUNT = 2;
+    private static final int OF_SLOTS = 4;
+    private static final int OF_SLOT_GENERATION = 2;
+    public static final int LEN_SLOT = 4;
+    //空槽, 偏移0在页头内, 不会是记录的位置
+    public static final int EMPTY_SLOT = 0;
+    //不对应任何槽的页内位置(一页最多几千个槽), 整理日志以它指代整个页面
+    public static final int PAGE_ADDRESS = 0xFFFF;
+
+    private static final int LEN_ITEM_HEADER = 3;
+
+    public static byte[] initRaw(int pageSize){
+        byte[] raw = new byte[pageSize];
+        setU16(raw, OF_DATA_START, pageSize);
+        return raw;
+    }
+
+    //单条记录最大长度, 需同时放下一个槽
+    public static int maxFreeSpace(int pageSize){
+        return pageSize - OF_SLOTS - LEN_SLOT;
+    }
+
+    private static int getU16(byte[] raw, int off){
+        return ((raw[off] & 0xFF) << 8) | (raw[off + 1] & 0xFF);
+    }
+
+    private static void setU16(byte[] raw, int off, int value){
+        raw[off] = (byte) (value >>> 8);
+        raw[off + 1] = (byte) value;
+    }
+
+    private static int itemLength(byte[] raw, int off){
+        return LEN_ITEM_HEADER + getU16(raw, off + 1);
+    }
+
+    private static int slotPos(int slot){
+        return OF_SLOTS + slot * LEN_SLOT;
+    }
+
+    private static int address(int slot, int generation){
+        return (generation << 16) | slot;
+    }
+
+    //从未落盘的新页在文件中为全0; 初始化过的页面DataStart不会是0
+    public static boolean isUninitialized(Page pg){
+        return getDataStart(pg) == 0 && getSlotCount(pg) == 0;
+    }
+
+    public static int getDataStart(Page pg){
+        return getU16(pg.getData(), OF_DATA_START);
+    }
+
+    public static int getSlotCount(Page pg){
+        return getU16(pg.getData(), OF_SLOT_COUNT);
+    }
+
+    //槽此刻的页内位置, 即当前引用槽中记录的uid所含的位置
+    public static int getAddress(Page pg, int slot){
+        return address(slot, getU16(pg.getData(), slotPos(slot) + OF_SLOT_GENERATION));
+    }
+
+    //槽中记录的偏移, 不核对代数
+    public static int getSlotOffset(Page pg, int slot){
+        return getU16(pg.getData(), slotPos(slot));
+    }
+
+    //页内位置对应的记录偏移; 槽不存在、已被整理掉或已被新记录复用(代数不同)时返回EMPTY_SLOT
+    public static int getOffset(Page pg, int address){
+        byte[] raw = pg.getData();
+        int slot = address & 0xFFFF;
+        if (slot >= getU16(raw, OF_SLOT_COUNT) || getU16(raw, slotPos(slot) + OF_SLOT_GENERATION) != address >>> 16){
+            return EMPTY_SLOT;
+        }
+        return getU16(raw, slotPos(slot));
+    }
+
+    //能放入的最大记录长度(已扣除新槽)
+    public static int getFreeSpace(Page pg){
+        byte[] raw = pg.getData();
+        int dirEnd = slotPos(getU16(raw, OF_SLOT_COUNT));
+        return Math.max(0, getU16(raw, OF_DATA_START) - dirEnd - LEN_SLOT);
+    }
+
+    //记录区已用的字节数, 包括失效记录
+    public static int getUsedSpace(Page pg){
+        return pg.getData().length - getDataStart(pg);
+    }
+
+    public static int getLiveSpace(Page pg){
+        byte[] raw = pg.getData();
+        int count = getU16(raw, OF_SLOT_COUNT);
+        int live = 0;
+        for (int i = 0; i < count; i++) {
+            int off = getU16(raw, slotPos(i));
+            if (off != EMPTY_SLOT && PageX.isLiveItem(raw[off])){
+                live += itemLength(raw, off);
+            }
+        }
+        return live;
+    }
+
+    //页中是否有溢出页链尚未回收的失效记录, 见PageX.holdsOverflow
+    public static boolean hasPendingOverflow(Page pg){
+        byte[] raw = pg.getData();
+        int count = getU16(raw, OF_SLOT_COUNT);
+        for (int i = 0; i < count; i++) {
+            int off = getU16(raw, slotPos(i));
+            if (off != EMPTY_SLOT && PageX.holdsOverflow(raw[off])){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * insert放入raw后返回的页内位置: 单条记录复用第一个空槽(代数加一), 没有空槽或批量插入时使用新槽(代数为0)
+     */
+    public static int nextAddress(Page pg, byte[] raw){
+        byte[] data = pg.getData();
+        int count = getU16(data, OF_SLOT_COUNT);
+        if (itemLength(raw, 0) == raw.length){
+            for (int i = 0; i < count; i++) {
+                if (getU16(data, slotPos(i)) == EMPTY_SLOT){
+                    return address(i, (getU16(data, slotPos(i) + OF_SLOT_GENERATION) + 1) & 0xFFFF);
+                }
+            }
+        }
+        return address(count, 0);
+    }
+
+    /**
+     * 把一段连续的记录(单条, 或批量插入的多条)放在DataStart之前, 返回第一条的页内位置(见nextAddress)
+     * 批量插入的各条依次占用新槽, 页内位置依次加一
+     */
+    public static int insert(Page pg, byte[] raw){
+        int first = nextAddress(pg, raw);
+        pg.setDirty(true);
+        byte[] data = pg.getData();
+        int offset = getU16(data, OF_DATA_START) - raw.length;
+        System.arraycopy(raw, 0, data, offset, raw.length);
+        int address = first;
+        for (int pos = 0; pos < raw.length; pos += itemLength(raw, pos)) {
+            setSlot(data, address++, offset + pos);
+        }
+        setU16(data, OF_DATA_START, offset);
+        pg.setDirty(true);
+        return first;
+    }
+
+    //槽指向offset并记下代数, 槽号超出时扩展槽目录
+    private static void setSlot(byte[] data, int address, int offset){
+        int slot = address & 0xFFFF;
+        setU16(data, slotPos(slot), offset);
+        setU16(data, slotPos(slot) + OF_SLOT_GENERATION, address >>> 16);
+        if (slot >= getU16(data, OF_SLOT_COUNT)){
+            setU16(data, OF_SLOT_COUNT, slot + 1);
+        }
+    }
+
+    /**
+     * 按插入日志重做或撤销: 槽已指向同一代记录时写到该位置(记录可能已被整理移动), 否则写回日志中的位置并恢复槽
+     * 槽已被更新的记录复用时同样写回日志中的位置, 之后的整理日志与插入日志会把页面重做到最新
+     */
+    public static void recoverInsert(Page pg, byte[] raw, int offset, int address){
+        pg.setDirty(true);
+        byte[] data = pg.getData();
+        if (getU16(data, OF_DATA_START) == 0){
+            // 页面建立后从未落盘, 文件中为全0, 按空页重做
+            setU16(data, OF_DATA_START, data.length);
+        }
+        for (int pos = 0; pos < raw.length; pos += itemLength(raw, pos), address++) {
+            int len = itemLength(raw, pos);
+            int target = getOffset(pg, address);
+            if (target == EMPTY_SLOT){
+                target = offset + pos;
+                setSlot(data, address, target);
+                if (target < getU16(data, OF_DATA_START)){
+                    setU16(data, OF_DATA_START, target);
+                }
+            }
+            System.arraycopy(raw, pos, data, target, len);
+        }
+        pg.setDirty(true);
+    }
+
+    /**
+     * 在页面副本上整理, 返回整理后的页面, 没有可腾出的空间时返回null; changes收集改写过的[offset, length]
+     * pinned(slot)为真的记录仍被缓存引用(DataItem指向当前位置), 留在原处, 它的字节不在改写范围内;
+     * 其余记录中reclaimable(slot)为真的失效记录清空其槽, 剩下的按偏移从高到低向记录区上界滑动
+     * 记录只会向高处移动, 固定记录上方留下的空隙等它不再被引用后的整理再收回
+     */
+    public static byte[] defragment(Page pg, IntPredicate reclaimable, IntPredicate pinned, List<int[]> changes){
+        byte[] raw = pg.getData();
+        byte[] image = raw.clone();
+        int count = getU16(raw, OF_SLOT_COUNT);
+        boolean changed = false;
+        // [偏移, 槽号, 是否固定]
+        List<int[]> items = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            int off = getU16(raw, slotPos(i));
+            if (off == EMPTY_SLOT){
+                continue;
+            }
+            boolean fixed = pinned.test(i);
+            if (!fixed && !PageX.isLiveItem(raw[off]) && reclaimable.test(i)){
+                setU16(image, slotPos(i), EMPTY_SLOT);
+                changed = true;
+            }else {
+                items.add(new int[]{off, i, fixed ? 1 : 0});
+            }
+        }
+        items.sort((a, b) -> Integer.compare(b[0], a[0]));
+        int top = raw.length;
+        int from = raw.length;          // 本段改写区间的上界, 固定的记录把记录区分成若干段
+        for (int[] item : items) {
+            if (item[2] == 1){
+                if (top < from){
+                    changes.add(new int[]{top, from - top});
+                }
+                top = from = item[0];
+                continue;
+            }
+            int len = itemLength(raw, item[0]);
+            top -= len;
+            if (top != item[0]){
+                System.arraycopy(raw, item[0], image, top, len);
+                setU16(image, slotPos(item[1]), top);
+                changed = true;
+            }
+        }
+        if (!changed){
+            changes.clear();
+            return null;
+        }
+        if (top < from){
+            changes.add(new int[]{top, from - top});
+        }
+        setU16(image, OF_DATA_START, top);
+        changes.add(new int[]{0, slotPos(count)});
+        return image;
+    }
+
+}
@@ -1,58 +1,246 @@
 package com.ggking.mydb.backend.dm.page;
 
-import com.ggking.mydb.backend.dm.pageCache.PageCache;
 import com.ggking.mydb.backend.utils.Parser;
 
 import java.util.Arrays;
+import java.util.List;
+import java.util.function.IntPredicate;
 
+/**
+ * 普通数据页
+ * [FreeSpaceOffset]2字节 [DataItem1][DataItem2]...
+ * 偏移量按无符号16位存储, 页面最大32KB, FSO最大为0x8000
+ * 特殊页(空闲空间映射页等)以FSO = 0xFFFF开头, 随后一字节为页类型(>=2), 数据页的FSO不会取到这个值
+ *
+ * 页内整理: uid中含有记录在页内的偏移, 记录不能移动, 旧uid所指的位置也不能被新记录占用
+ * 因此失效记录整理为 [TOMBSTONE头][FILLER头 + 空闲区], 墓碑保住原位置, 其后的空闲区可以放入新记录;
+ * 相邻的空闲区合并, 位于末尾的空闲区直接还给FSO. 空闲区的起始位置从未作为uid发出, 可以放心复用
+ */
 public class PageX {
 
     private static final short OF_FREE = 0;
     private static final short OF_DATA = 2;
-    public static final int MAX_FREE_SPACE = PageCache.PAGE_SIZE - OF_DATA;
+    private static final int SPECIAL_MARKER = 0xFFFF;
+    private static final int OF_KIND = 2;
+    public static final byte KIND_FSM = 2;
+    public static final byte KIND_OVERFLOW = 3;
 
-    public static byte[] initRaw(){
-        byte[] raw = new byte[PageCache.PAGE_SIZE];
+    //DataItem的ValidFlag: 0有效, 1失效; 以下两种只由页内整理产生
+    private static final byte ITEM_INVALID = 1;
+    private static final byte ITEM_TOMBSTONE = 2;
+    private static final byte ITEM_FILLER = 3;
+    private static final int LEN_ITEM_HEADER = 3;
+    //ValidFlag的最高位标记溢出记录(页内只有前缀), 判断有效/失效时忽略
+    private static final int FLAG_OVERFLOW = 0x80;
+
+    public static byte[] initRaw(int pageSize){
+        byte[] raw = new byte[pageSize];
         setFSO(raw,OF_DATA);
         return raw;
     }
 
-    private static void setFSO(byte[] raw,short ofData){
-        System.arraycopy(Parser.short2Byte(ofData), 0, raw, OF_FREE, OF_DATA);
+    //建立特殊页, 页类型之后的内容由各类特殊页自行定义
+    public static byte[] initSpecialRaw(int pageSize, byte kind){
+        byte[] raw = new byte[pageSize];
+        setFSO(raw, SPECIAL_MARKER);
+        raw[OF_KIND] = kind;
+        return raw;
+    }
+
+    public static boolean isSpecial(Page pg){
+        byte[] raw = pg.getData();
+        return getFSO(raw) == SPECIAL_MARKER && raw[OF_KIND] >= 2;
+    }
+
+    public static byte getKind(Page pg){
+        return pg.getData()[OF_KIND];
     }
 
-    public static short getFSO(Page pg){
+    public static int maxFreeSpace(int pageSize){
+        return pageSize - OF_DATA;
+    }
+
+    private static void setFSO(byte[] raw,int ofData){
+        System.arraycopy(Parser.short2Byte((short) ofData), 0, raw, OF_FREE, OF_DATA);
+    }
+
+    public static int getFSO(Page pg){
         return getFSO(pg.getData());
     }
 
-    private static short getFSO(byte[] raw){
-        return Parser.parseShort(Arrays.copyOfRange(raw, 0, 2));
+    private static int getFSO(byte[] raw){
+        return Parser.parseShort(Arrays.copyOfRange(raw, 0, 2)) & 0xFFFF;
     }
 
-    public static short insert(Page pg,byte[] raw){
+    public static int insert(Page pg,byte[] raw){
         pg.setDirty(true);
-        short offset = getFSO(pg.getData());
+        int offset = getFSO(pg.getData());
         System.arraycopy(raw,0,pg.getData(),offset,raw.length);
-        setFSO(raw, (short) ((short) offset + raw.length));
+        setFSO(pg.getData(), offset + raw.length);
+        // 后台写回先清脏位再拷贝, 修改完成后再次置脏, 与写回交错时修改才不会被漏写
+        pg.setDirty(true);
         return offset;
     }
 
+    //分配后既未落盘也未写日志的新页, 崩溃后在文件中为全0; FSO至少为OF_DATA, 小于它说明页面从未初始化
+    public static boolean isUninitialized(Page pg){
+        return getFSO(pg.getData()) < OF_DATA;
+    }
+
     public static int getFreeSpace(Page pg){
-        return PageCache.PAGE_SIZE - getFSO(pg.getData());
+        return pg.getData().length - getFSO(pg.getData());
+    }
+
+    //把记录放入空闲区或按日志重做插入, 写入位置由调用者给出
+    public static void insertAt(Page pg, byte[] raw, int offset){
+        recoverInsert(pg, raw, offset);
     }
 
-    public static void recoverInsert(Page pg,byte[] raw,short offset){
+    public static void recoverInsert(Page pg,byte[] raw,int offset){
         pg.setDirty(true);
         System.arraycopy(raw,0,pg.getData(),offset,raw.length);
-        short rawFSO = getFSO(pg.getData());
+        int rawFSO = getFSO(pg.getData());
         if (rawFSO < offset + raw.length){
-            setFSO(pg.getData(),(short) (offset + raw.length));
+            setFSO(pg.getData(), offset + raw.length);
         }
+        pg.setDirty(true);
     }
 
-    public static void recoverUpdate(Page pg,byte[] raw,short offset){
+    public static void recoverUpdate(Page pg,byte[] raw,int offset){
         pg.setDirty(true);
         System.arraycopy(raw,0,pg.getData(),offset,raw.length);
+        pg.setDirty(true);
+    }
+
+    public static boolean isLiveItem(byte flag){
+        return (flag & 0xFF & ~FLAG_OVERFLOW) == 0;
+    }
+
+    /**
+     * 失效但仍带溢出标记的记录: 溢出页链尚未回收, 链的入口只记在这条记录中
+     * 回收溢出页前先去掉溢出标记, 因此带标记的失效记录在整理时由整理者回收它的溢出页链
+     */
+    public static boolean holdsOverflow(byte flag){
+        return (flag & 0xFF) == (ITEM_INVALID | FLAG_OVERFLOW);
+    }
+
+    //页中是否有溢出页链尚未回收的失效记录
+    public static boolean hasPendingOverflow(Page pg){
+        byte[] raw = pg.getData();
+        int fso = getFSO(raw);
+        for (int off = OF_DATA; off + LEN_ITEM_HEADER <= fso; off += LEN_ITEM_HEADER + itemSize(raw, off)){
+            if (holdsOverflow(raw[off])){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int itemSize(byte[] raw, int off){
+        return ((raw[off + 1] & 0xFF) << 8) | (raw[off + 2] & 0xFF);
+    }
+
+    private static void setItemHeader(byte[] raw, int off, byte flag, int size){
+        raw[off] = flag;
+        raw[off + 1] = (byte) (size >>> 8);
+        raw[off + 2] = (byte) size;
+    }
+
+    //有效记录占用的字节数
+    public static int getLiveSpace(Page pg){
+        byte[] raw = pg.getData();
+        int fso = getFSO(raw);
+        int live = 0;
+        for (int off = OF_DATA; off + LEN_ITEM_HEADER <= fso; off += LEN_ITEM_HEADER + itemSize(raw, off)){
+            if (isLiveItem(raw[off])){
+                live += LEN_ITEM_HEADER + itemSize(raw, off);
+            }
+        }
+        return live;
+    }
+
+    public static int getUsedSpace(Page pg){
+        return getFSO(pg.getData()) - OF_DATA;
+    }
+
+    //能放入的最大记录: 末尾剩余空间与最大空闲区中的较大者
+    public static int getUsableSpace(Page pg){
+        byte[] raw = pg.getData();
+        int fso = getFSO(raw);
+        int usable = getFreeSpace(pg);
+        for (int off = OF_DATA; off + LEN_ITEM_HEADER <= fso; off += LEN_ITEM_HEADER + itemSize(raw, off)){
+            if (raw[off] == ITEM_FILLER){
+                usable = Math.max(usable, itemSize(raw, off));
+            }
+        }
+        return usable;
+    }
+
+    /**
+     * 找一个能放下length字节记录的空闲区, 找不到时返回-1
+     * 空闲区恰好放满, 或放入后剩余部分还能放下一个空闲区头
+     */
+    public static int findFiller(Page pg, int length){
+        byte[] raw = pg.getData();
+        int fso = getFSO(raw);
+        for (int off = OF_DATA; off + LEN_ITEM_HEADER <= fso; off += LEN_ITEM_HEADER + itemSize(raw, off)){
+            if (raw[off] != ITEM_FILLER){
+                continue;
+            }
+            int size = itemSize(raw, off);
+            if (LEN_ITEM_HEADER + size == length || size >= length){
+                return off;
+            }
+        }
+        return -1;
+    }
+
+    //放入offset处空闲区时实际要写的字节: 记录本身, 以及剩余部分的空闲区头
+    public static byte[] fillerInsertRaw(Page pg, byte[] raw, int offset){
+        int total = LEN_ITEM_HEADER + itemSize(pg.getData(), offset);
+        if (raw.length == total){
+            return raw;
+        }
+        byte[] res = Arrays.copyOf(raw, raw.length + LEN_ITEM_HEADER);
+        setItemHeader(res, raw.length, ITEM_FILLER, total - raw.length - LEN_ITEM_HEADER);
+        return res;
+    }
+
+    /**
+     * 在页面副本上做页内整理, 返回整理后的副本, 没有可整理的内容时返回null
+     * reclaimable判断某个失效记录此刻能否整理(没有被缓存引用); changes收集改动过的[offset, length]
+     * 改动只涉及失效记录与空闲区的头部以及FSO, 有效记录的字节不会被写到
+     */
+    public static byte[] compact(Page pg, IntPredicate reclaimable, List<int[]> changes){
+        byte[] raw = pg.getData().clone();
+        int fso = getFSO(raw);
+        int filler = -1;                                  // 紧挨着当前位置之前的空闲区
+        int off = OF_DATA;
+        while (off + LEN_ITEM_HEADER <= fso){
+            int size = itemSize(raw, off);
+            int next = off + LEN_ITEM_HEADER + size;
+            if ((raw[off] & 0xFF & ~FLAG_OVERFLOW) == ITEM_INVALID && size >= LEN_ITEM_HEADER && reclaimable.test(off)){
+                setItemHeader(raw, off, ITEM_TOMBSTONE, 0);
+                setItemHeader(raw, off + LEN_ITEM_HEADER, ITEM_FILLER, size - LEN_ITEM_HEADER);
+                changes.add(new int[]{off, 2 * LEN_ITEM_HEADER});
+                filler = off + LEN_ITEM_HEADER;
+            }else if (raw[off] == ITEM_FILLER){
+                if (filler >= 0){
+                    setItemHeader(raw, filler, ITEM_FILLER, next - filler - LEN_ITEM_HEADER);
+                    changes.add(new int[]{filler, LEN_ITEM_HEADER});
+                }else {
+                    filler = off;
+                }
+            }else {
+                filler = -1;
+            }
+            off = next;
+        }
+        if (filler >= 0){
+            setFSO(raw, filler);
+            changes.add(new int[]{OF_FREE, OF_DATA});
+        }
+        return changes.isEmpty() ? null : raw;
     }
 
 }
@@ -0,0 +1,58 @@
+package com.ggking.mydb.backend.dm.pageCache;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 页框池
+ * 启动时按缓存容量一次性分配全部页框, 页面被淘汰后页框回收复用, 稳定运行时缓存不再产生页面相关的垃圾
+ * 页框只有在页面引用计数为0、被淘汰之后才回收, 此时不会再有DataItem等对象持有其中的数据
+ */
+class FrameArena {
+
+    private int frameSize;
+    private volatile int capacity;
+    private ConcurrentLinkedQueue<byte[]> free;
+    private AtomicInteger freeCount;
+
+    FrameArena(int frameSize, int capacity) {
+        this.frameSize = frameSize;
+        this.capacity = capacity;
+        free = new ConcurrentLinkedQueue<>();
+        freeCount = new AtomicInteger(0);
+        for (int i = 0; i < capacity; i++) {
+            free.offer(new byte[frameSize]);
+        }
+        freeCount.set(capacity);
+    }
+
+    //取一个页框, 内容不保证为0
+    byte[] acquire() {
+        byte[] frame = free.poll();
+        if (frame == null) {
+            return new byte[frameSize];
+        }
+        freeCount.decrementAndGet();
+        return frame;
+    }
+
+    //扩容时不预先分配, 新页框在acquire时按需创建, 回收后留在池中; 缩容时丢弃多余的空闲页框
+    void resize(int capacity) {
+        this.capacity = capacity;
+        while (freeCount.get() > capacity && free.poll() != null) {
+            freeCount.decrementAndGet();
+        }
+    }
+
+    void recycle(byte[] frame) {
+        if (frame.length != frameSize) {
+            return;
+        }
+        // 淘汰与加载交错时可能短暂多出几个页框, 超出容量的直接丢弃
+        if (freeCount.incrementAndGet() > capacity) {
+            freeCount.decrementAndGet();
+            return;
+        }
+        free.offer(frame);
+    }
+}
@@ -0,0 +1,97 @@
+package com.ggking.mydb.backend.dm.pageCache;
+
+import com.ggking.mydb.backend.dm.DataManagerOptions;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 内存映射模式的页面缓存
+ * .db文件按SEGMENT_SIZE分段映射, 页面读写变成对映射区的内存拷贝, 不再有read/write系统调用,
+ * 由操作系统的页缓存充当缓冲池, 适合读多写少的实例, 此时-mem可以设得较小
+ * 映射某一段时文件会被扩展到该段末尾, 因此正常关闭时按页数截断文件; 异常退出后多出的空白页由Recover截断
+ */
+public class MappedPageCacheImpl extends PageCacheImpl {
+
+    private static final long SEGMENT_SIZE = 64L << 20;
+
+    private Map<Integer, MappedByteBuffer> segments;
+
+    public MappedPageCacheImpl(RandomAccessFile file, FileChannel fc, int maxResource, int pageSize, DataManagerOptions options) {
+        super(file, fc, maxResource, pageSize, options);
+        segments = new ConcurrentHashMap<>();
+    }
+
+    private MappedByteBuffer segment(int idx) throws IOException {
+        MappedByteBuffer seg = segments.get(idx);
+        if (seg != null) {
+            return seg;
+        }
+        synchronized (this) {
+            seg = segments.get(idx);
+            if (seg == null) {
+                seg = fc.map(FileChannel.MapMode.READ_WRITE, idx * SEGMENT_SIZE, SEGMENT_SIZE);
+                segments.put(idx, seg);
+            }
+            return seg;
+        }
+    }
+
+    @Override
+    protected void readAt(ByteBuffer buf, long offset) throws IOException {
+        while (buf.hasRemaining()) {
+            long pos = offset + buf.position();
+            ByteBuffer src = segment((int) (pos / SEGMENT_SIZE)).duplicate();
+            int start = (int) (pos % SEGMENT_SIZE);
+            src.position(start);
+            src.limit((int) Math.min(SEGMENT_SIZE, start + (long) buf.remaining()));
+            buf.put(src);
+        }
+    }
+
+    @Override
+    protected void writeAt(ByteBuffer buf, long offset) throws IOException {
+        while (buf.hasRemaining()) {
+            long pos = offset + buf.position();
+            ByteBuffer dst = segment((int) (pos / SEGMENT_SIZE)).duplicate();
+            int start = (int) (pos % SEGMENT_SIZE);
+            dst.position(start);
+            int len = (int) Math.min(SEGMENT_SIZE - start, buf.remaining());
+            ByteBuffer chunk = buf.duplicate();
+            chunk.limit(chunk.position() + len);
+            dst.put(chunk);
+            buf.position(buf.position() + len);
+        }
+    }
+
+    @Override
+    protected void sync() {
+        for (MappedByteBuffer seg : segments.values()) {
+            seg.force();
+        }
+    }
+
+    @Override
+    public void truncateByBgno(int maxPgno) {
+        // 截断点所在段及其后的映射作废, 之后访问时重新映射, 避免访问到文件末尾之外的映射区
+        long size = pageOffset(maxPgno + 1);
+        synchronized (this) {
+            segments.keySet().removeIf(idx -> (idx + 1) * SEGMENT_SIZE > size);
+        }
+        super.truncateByBgno(maxPgno);
+    }
+
+    @Override
+    protected void closeFile() throws IOException {
+        sync();
+        segments.clear();
+        file.setLength(Integer.toUnsignedLong(getPageNumber()) * getPageSize());
+        fc.close();
+        file.close();
+    }
+}
@@ -1,21 +1,48 @@
 package com.ggking.mydb.backend.dm.pageCache;
 
+import com.ggking.mydb.backend.common.MemoryBudget;
+import com.ggking.mydb.backend.dm.DataManagerOptions;
 import com.ggking.mydb.backend.dm.page.Page;
+import com.ggking.mydb.backend.dm.page.PageOne;
+import com.ggking.mydb.backend.utils.Parser;
 import com.ggking.mydb.backend.utils.Panic;
 import com.ggking.mydb.common.Error;
 
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 
 public interface PageCache {
 
+    //默认页面大小, 也是未记录页面大小的旧数据库所用的大小
     public static final int PAGE_SIZE = 1 << 13;
+    public static final int MIN_PAGE_SIZE = 1 << 12;
+    //页内偏移按无符号16位存储, 且0xFFFF留作特殊页标记, 页面最大32KB, 写满的页与差一字节写满的页总能区分
+    public static final int MAX_PAGE_SIZE = 1 << 15;
+    //页号是UID的高32位, 按无符号数处理, 0不是有效页号
+    public static final long MAX_PAGES = (1L << 32) - 1;
 
     static PageCache create(String path, long memory) {
+        return create(path, memory, new DataManagerOptions());
+    }
+
+    static PageCache create(String path, long memory, DataManagerOptions options) {
+        int pageSize = options.pageSize;
+        if (pageSize < MIN_PAGE_SIZE || pageSize > MAX_PAGE_SIZE || Integer.bitCount(pageSize) != 1) {
+            Panic.panic(Error.InvalidPageSizeException);
+        }
+        long segmentSize = options.segmentSize;
+        if (segmentSize < 0 || segmentSize % pageSize != 0 || segmentSize / pageSize > Integer.MAX_VALUE) {
+            Panic.panic(Error.InvalidSegmentSizeException);
+        }
+        int segmentPages = (int) (segmentSize / pageSize);
         File f = new File(path + PageCacheImpl.DB_SUFFIX);
         try{
+            // 残留的段文件会在打开时被当作本库的数据
+            if (segmentPages > 0 && SegmentedPageCacheImpl.segmentFile(path, 1).exists()){Panic.panic(Error.FileExistsException);}
             if (!f.createNewFile()){Panic.panic(Error.FileExistsException);}
         }catch (Exception e){
             Panic.panic(e);
@@ -26,16 +53,20 @@ public interface PageCache {
         RandomAccessFile raf = null;
 
         try {
-            raf = new RandomAccessFile(f, "fw");
+            raf = new RandomAccessFile(f, "rw");
             fc = raf.getChannel();
         } catch (FileNotFoundException e) {
             Panic.panic(e);
         }
 
-        return new PageCacheImpl(raf,fc,(int)memory/PAGE_SIZE);
+        return newPageCache(path, raf, fc, memory, pageSize, segmentPages, options);
     }
 
     static PageCache open(String path, long memory) {
+        return open(path, memory, new DataManagerOptions());
+    }
+
+    static PageCache open(String path, long memory, DataManagerOptions options) {
         File f = new File(path + PageCacheImpl.DB_SUFFIX);
         if (!f.exists()){Panic.panic(Error.FileExistsException);}
         if (!f.canRead() || !f.canWrite()){Panic.panic(Error.FileCannotRWException);}
@@ -48,7 +79,59 @@ public interface PageCache {
         } catch (FileNotFoundException e) {
             Panic.panic(e);
         }
-        return new PageCacheImpl(raf, fc, (int)memory/PAGE_SIZE);
+        int segmentPages = readPageOneInt(fc, PageOne.OF_SEGMENT_PAGES);
+        if (segmentPages < 0) {
+            Panic.panic(Error.InvalidSegmentSizeException);
+        }
+        return newPageCache(path, raf, fc, memory, readPageSize(fc), segmentPages, options);
+    }
+
+    //页面大小、分段等记录在第一页中, 必须在建立页面缓存之前直接从文件读出; 第一页总在.db文件中
+    private static int readPageOneInt(FileChannel fc, int offset) {
+        ByteBuffer buf = ByteBuffer.allocate(4);
+        try {
+            while (buf.hasRemaining()) {
+                if (fc.read(buf, offset + buf.position()) < 0) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        return buf.hasRemaining() ? 0 : Parser.parseInt(buf.array());
+    }
+
+    private static int readPageSize(FileChannel fc) {
+        int pageSize = readPageOneInt(fc, PageOne.OF_PAGE_SIZE);
+        if (pageSize == 0) {
+            return PAGE_SIZE;
+        }
+        if (pageSize < MIN_PAGE_SIZE || pageSize > MAX_PAGE_SIZE || Integer.bitCount(pageSize) != 1) {
+            Panic.panic(Error.InvalidPageSizeException);
+        }
+        return pageSize;
+    }
+
+    private static PageCache newPageCache(String path, RandomAccessFile raf, FileChannel fc, long memory, int pageSize, int segmentPages, DataManagerOptions options) {
+        PageCacheImpl pc = null;
+        if (segmentPages > 0) {
+            if (options.mmap) {
+                Panic.panic(Error.MmapSegmentedException);
+            }
+            try {
+                pc = new SegmentedPageCacheImpl(path, raf, fc, (int) (memory / pageSize), pageSize, segmentPages, options);
+            } catch (IOException e) {
+                Panic.panic(e);
+            }
+        } else if (options.mmap) {
+            pc = new MappedPageCacheImpl(raf, fc, (int) (memory / pageSize), pageSize, options);
+        } else {
+            pc = new PageCacheImpl(raf, fc, (int) (memory / pageSize), pageSize, options);
+        }
+        pc.enableWarmup(path);
+        pc.enablePageMap(path);
+        pc.start();
+        return pc;
     }
 
     int newPage(byte[] initData);
@@ -57,5 +140,18 @@ public interface PageCache {
     void release(Page page);
     void truncateByBgno(int maxPgno);
     int getPageNumber();
+    int getPageSize();
+    //数据文件每段的页数, 0表示不分段
+    int getSegmentPages();
+    //缓冲池运行统计, 供show status展示
+    String status();
+    //运行时调整缓冲池大小(字节)
+    void resize(long memory) throws Exception;
+    //页面缓存与DataItem、Entry缓存共用的内存预算
+    MemoryBudget getMemoryBudget();
     void flushPage(Page pg);
+    //提示即将顺序访问[pgno, pgno + count)的页面, 异步读入缓存
+    void prefetch(int pgno, int count);
+    //在后台按上次关闭时记录的驻留页预热缓存
+    void warmUp();
 }
@@ -1,6 +1,10 @@
 package com.ggking.mydb.backend.dm.pageCache;
 
 import com.ggking.mydb.backend.common.AbstractCache;
+import com.ggking.mydb.backend.common.CacheStats;
+import com.ggking.mydb.backend.common.MemoryBudget;
+import com.ggking.mydb.backend.common.policy.ReplacementPolicy;
+import com.ggking.mydb.backend.dm.DataManagerOptions;
 import com.ggking.mydb.backend.dm.page.Page;
 import com.ggking.mydb.backend.dm.page.PageImpl;
 import com.ggking.mydb.backend.utils.Panic;
@@ -10,6 +14,13 @@ import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
@@ -19,95 +30,443 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache{
     private static final int MEM_MIN_LIM = 10;
     public static final String DB_SUFFIX = ".db";
 
-    private RandomAccessFile file;
-    private FileChannel fc;
-    private Lock fileLock;
+    private static final int WRITE_STRIPES = 64;      // 页面写锁分段数
+    private static final int MAX_WRITE_BATCH = 256;   // 后台写回每批最多页数
+    private static final int PREFETCH_THREADS = 2;
+
+    //预读线程自己的读取不参与顺序访问检测, 否则预读会一路触发下去
+    private static final ThreadLocal<Boolean> PREFETCHING = ThreadLocal.withInitial(() -> false);
+
+    RandomAccessFile file;
+    FileChannel fc;
+    private int pageSize;
+    //同一页面的写回串行化, 防止较旧的快照覆盖较新的写入
+    private Lock[] writeLocks;
 
     private AtomicInteger pageNumbers;
+    private volatile int allocatedPages;                      // 文件长度能容纳的页数, 扩展时加锁
+    private int extentPages;                          // 每次扩展的页数
+    private Lock extendLock;
+    private PageWriter writer;
+    private FrameArena arena;
+    //后台写回合并连续页面用的缓冲区, 只由写回线程使用
+    private ByteBuffer writeBuf;
+
+    private int readAhead;
+    private volatile int maxPrefetch;                          // 单次预读的上限, 避免预读冲掉大半个缓存
+    private AtomicInteger lastMiss;                   // 最近一次前台缺页的页号
+    private ThreadPoolExecutor prefetcher;
+    //关闭时置位, 预读任务见到后放弃; 不中断预读线程, 中断正在读文件的线程会关闭共享的FileChannel
+    private volatile boolean closing;
+    private volatile PageWarmer warmer;
+    //写回时压缩页面; 读取总是识别压缩页, 与是否开启无关
+    private boolean compress;
+    private volatile PageMap pageMap;
 
 
     public PageCacheImpl(RandomAccessFile file,FileChannel fc,int maxResource) {
-        super(maxResource);
+        this(file, fc, maxResource, new DataManagerOptions());
+    }
+
+    public PageCacheImpl(RandomAccessFile file, FileChannel fc, int maxResource, DataManagerOptions options) {
+        this(file, fc, maxResource, PAGE_SIZE, options);
+    }
+
+    public PageCacheImpl(RandomAccessFile file, FileChannel fc, int maxResource, int pageSize, DataManagerOptions options) {
+        this(file, fc, maxResource, pageSize, options, fileLength(file));
+    }
+
+    //length为数据的总长度, 分段存储时由子类统计各段之和
+    protected PageCacheImpl(RandomAccessFile file, FileChannel fc, int maxResource, int pageSize, DataManagerOptions options, long length) {
+        super(maxResource, newPolicy(options, maxResource));
         if (maxResource < MEM_MIN_LIM){
             Panic.panic(Error.MemTooSmallException);
         }
+        this.fc = fc;
+        this.file = file;
+        this.pageSize = pageSize;
+        writeLocks = new Lock[WRITE_STRIPES];
+        for (int i = 0; i < WRITE_STRIPES; i++) {
+            writeLocks[i] = new ReentrantLock();
+        }
+        pageNumbers = new AtomicInteger((int) (length / pageSize));
+        allocatedPages = pageNumbers.get();
+        extentPages = (int) Math.max(1, options.extentSize / pageSize);
+        extendLock = new ReentrantLock();
+        arena = new FrameArena(pageSize, maxResource);
+        writeBuf = ByteBuffer.allocateDirect(MAX_WRITE_BATCH * pageSize);
+        readAhead = options.readAhead;
+        compress = options.compress;
+        maxPrefetch = Math.max(1, maxResource / 4);
+        lastMiss = new AtomicInteger(0);
+        // 预读只是提示, 队列满时直接丢弃
+        prefetcher = new ThreadPoolExecutor(PREFETCH_THREADS, PREFETCH_THREADS, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(64), r -> {
+                    Thread t = new Thread(r, "page-prefetcher");
+                    t.setDaemon(true);
+                    return t;
+                }, new ThreadPoolExecutor.DiscardPolicy());
+        // 页面缓存建立共享预算, DataItem与Entry缓存随后加入
+        joinBudget(new MemoryBudget((long) maxResource * pageSize), MemoryBudget.RANK_PAGE);
+        writer = new PageWriter(this, options.flushIntervalMs);
+    }
+
+    /**
+     * 启动后台写回线程; 由PageCache在对象(包括子类的字段)完全构造、预热与页面映射就位之后调用,
+     * 写回线程会调用子类覆盖的readAt/writeAt/sync, 不能在构造器中启动
+     */
+    void start() {
+        writer.start();
+    }
+
+    private static long fileLength(RandomAccessFile file) {
         long length = 0;
         try {
             length = file.length();
         } catch (IOException e) {
             Panic.panic(e);
         }
-        this.fc = fc;
-        this.file = file;
-        fileLock = new ReentrantLock();
-        pageNumbers = new AtomicInteger((int) length/PAGE_SIZE);
+        return length;
+    }
+
+    private static ReplacementPolicy newPolicy(DataManagerOptions options, int maxResource) {
+        ReplacementPolicy policy = ReplacementPolicy.newPolicy(options.policy, maxResource);
+        if (policy == null) {
+            Panic.panic(Error.InvalidPolicyException);
+        }
+        return policy;
+    }
+
+    //记录驻留页号到path旁的预热文件, 关闭时及后台写回线程定期保存
+    void enableWarmup(String path) {
+        warmer = new PageWarmer(this, path);
+    }
+
+    //读取压缩页时按path旁的页面映射只读出压缩后的字节
+    void enablePageMap(String path) {
+        PageMap map = new PageMap(path);
+        map.load();
+        pageMap = map;
+    }
+
+    @Override
+    public void warmUp() {
+        if (warmer != null) {
+            warmer.start();
+        }
+    }
+
+    void saveWarmList() {
+        if (warmer != null) {
+            warmer.save();
+        }
+    }
+
+    /**
+     * 运行时调整缓冲池大小; 缩小时先淘汰干净页, 仍超出时把脏页批量写回后再淘汰
+     */
+    @Override
+    public void resize(long memory) throws Exception {
+        long pages = memory / pageSize;
+        if (pages < MEM_MIN_LIM) {
+            throw Error.MemTooSmallException;
+        }
+        int maxResource = (int) Math.min(Integer.MAX_VALUE, pages);
+        maxPrefetch = Math.max(1, maxResource / 4);
+        if (!setMaxResource(maxResource)) {
+            writeDirtyPages();
+            shrink();
+        }
+        arena.resize(maxResource);
+        getBudget().setLimit(memory);
+    }
+
+    @Override
+    protected boolean isDirty(Page page) {
+        return page.isDirty();
+    }
+
+    @Override
+    protected long weigh(Page page) {
+        return pageSize;
+    }
+
+    @Override
+    public MemoryBudget getMemoryBudget() {
+        return getBudget();
+    }
+
+    //按页号升序的驻留页
+    List<Integer> residentPages() {
+        List<Integer> pages = new ArrayList<>();
+        for (long key : residentKeys()) {
+            pages.add((int) key);
+        }
+        pages.sort(Integer::compareUnsigned);
+        return pages;
+    }
+
+    //预热读入一页; 缓存已满时返回false, 预热到此为止, 不去挤掉前台已经用到的页
+    boolean warmPage(int pgno) {
+        if (residentCount() >= getMaxResource()) {
+            return false;
+        }
+        if (pgno == 0 || Integer.compareUnsigned(pgno, pageNumbers.get()) > 0 || isResident(Integer.toUnsignedLong(pgno))) {
+            return true;
+        }
+        PREFETCHING.set(true);
+        try {
+            Page pg = getPage(pgno);
+            pg.release();
+            return true;
+        } catch (Exception e) {
+            return false;
+        } finally {
+            PREFETCHING.set(false);
+        }
     }
 
     @Override
     public void close() {
+        if (warmer != null) {
+            warmer.close();
+            warmer.save();
+        }
+        closing = true;
+        prefetcher.shutdown();
+        try {
+            prefetcher.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException ignored) {
+            Thread.currentThread().interrupt();
+        }
+        writer.close();
         super.close();
+        if (pageMap != null) {
+            pageMap.save();
+        }
         try {
-            fc.close();
-            file.close();
+            closeFile();
         } catch (IOException e) {
             Panic.panic(e);
         }
     }
 
+    protected void closeFile() throws IOException {
+        sync();
+        fc.close();
+        file.close();
+    }
+
     @Override
     protected Page getForCache(long key) throws Exception {
         int pano = (int) key;
         long offset = pageOffset(pano);
-        ByteBuffer buf = ByteBuffer.allocate(PAGE_SIZE);
-        fileLock.lock();
+        if (!PREFETCHING.get()) {
+            detectSequential(pano);
+        }
+        byte[] frame = arena.acquire();
+        long start = System.nanoTime();
         try {
-            fc.position(offset);
-            fc.read(buf);
-        } catch (Exception e) {
+            readPage(pano, offset, frame);
+        } catch (IOException e) {
             Panic.panic(e);
         }
-        fileLock.unlock();
-        return new PageImpl(pano, buf.array(), this);
+        getStats().readLatency.record(System.nanoTime() - start);
+        return new PageImpl(pano, frame, this);
     }
 
-    private long pageOffset(int pano) {
-        return (pano - 1) * PAGE_SIZE;
+    /**
+     * 页面映射给出压缩后的长度时只读这么多; 读到的不是完整的压缩页(映射过时)时再读整页
+     * 整页读到的是压缩页时就地解压
+     */
+    private void readPage(int pano, long offset, byte[] frame) throws IOException {
+        int hint = pageMap == null ? 0 : pageMap.get(pano);
+        if (hint > 0 && hint < pageSize) {
+            byte[] stored = new byte[hint];
+            ByteBuffer buf = ByteBuffer.wrap(stored);
+            readAt(buf, offset);
+            if (PageCodec.isCompressed(stored, buf.position()) && PageCodec.storedLength(stored) <= buf.position()) {
+                decode(stored, frame);
+                return;
+            }
+        }
+        ByteBuffer buf = ByteBuffer.wrap(frame);
+        readAt(buf, offset);
+        // 复用的页框可能残留旧数据, 文件末尾之外的部分补0
+        Arrays.fill(frame, buf.position(), frame.length, (byte) 0);
+        if (PageCodec.isCompressed(frame, buf.position())) {
+            byte[] stored = Arrays.copyOf(frame, Math.min(PageCodec.storedLength(frame), frame.length));
+            decode(stored, frame);
+            if (pageMap != null) {
+                pageMap.set(pano, stored.length);
+            }
+        }
+    }
+
+    private void decode(byte[] stored, byte[] frame) {
+        if (!PageCodec.decode(stored, frame)) {
+            Panic.panic(Error.CorruptedPageException);
+        }
+    }
+
+    /**
+     * 开启压缩且压缩有收益时返回压缩格式, 否则返回null由调用者原样写出; 第一页总是原样写出(打开时需直接读取其中的页面大小)
+     */
+    private ByteBuffer encode(int pano, byte[] data) {
+        ByteBuffer stored = compress && pano != 1 ? PageCodec.encode(data) : null;
+        if (pageMap != null) {
+            pageMap.set(pano, stored == null ? 0 : stored.remaining());
+        }
+        return stored;
+    }
+
+    /**
+     * 前台缺页恰好紧跟上一次缺页时, 认为在顺序扫描, 预读其后readAhead页
+     * 预读之后把"上一次缺页"推到预读窗口末尾, 扫描越过窗口时的那次缺页会再次被识别为顺序访问
+     */
+    private void detectSequential(int pano) {
+        if (readAhead <= 0) {
+            return;
+        }
+        int prev = lastMiss.get();
+        if (pano == prev + 1) {
+            lastMiss.set(pano + readAhead);
+            prefetch(pano + 1, readAhead);
+        } else {
+            lastMiss.set(pano);
+        }
+    }
+
+    @Override
+    public void prefetch(int pgno, int count) {
+        long from = Integer.toUnsignedLong(pgno);
+        long end = Math.min(from + Math.min(count, maxPrefetch), Integer.toUnsignedLong(pageNumbers.get()) + 1);
+        if (from >= end) {
+            return;
+        }
+        prefetcher.execute(() -> {
+            PREFETCHING.set(true);
+            try {
+                for (long i = from; i < end; i++) {
+                    if (closing) {
+                        return;
+                    }
+                    if (isResident(i)) {
+                        continue;
+                    }
+                    Page pg = get(i);
+                    pg.release();
+                }
+            } catch (Exception ignored) {
+                // 缓存已满等情况下放弃本次预读
+            } finally {
+                PREFETCHING.set(false);
+            }
+        });
+    }
+
+    //按位置读, 不移动通道的共享position, 多个读可以同时进行; 超出文件末尾的部分保持为0
+    protected void readAt(ByteBuffer buf, long offset) throws IOException {
+        while (buf.hasRemaining()) {
+            if (fc.read(buf, offset + buf.position()) < 0) {
+                break;
+            }
+        }
+    }
+
+    protected void writeAt(ByteBuffer buf, long offset) throws IOException {
+        while (buf.hasRemaining()) {
+            fc.write(buf, offset + buf.position());
+        }
+    }
+
+    //扩展或截断数据文件, 调用者持有extendLock
+    protected void setFileLength(long size) throws IOException {
+        file.setLength(size);
+    }
+
+    //把已写出的页面强制落盘
+    protected void sync() throws IOException {
+        fc.force(false);
+    }
+
+    long pageOffset(int pano) {
+        return (Integer.toUnsignedLong(pano) - 1) * pageSize;
     }
 
     @Override
     protected void releaseForCache(Page page) {
             if (page.isDirty()){
-                flush(page);
-                page.setDirty(false);
+                // 前台淘汰到了脏页, 说明后台写回跟不上, 提前唤醒
+                writer.wakeup();
+                flush(page, false);
             }
-            
+            arena.recycle(page.getData());
     }
 
+    /**
+     * 新页只在内存中建立, 以脏页的形式进入缓存, 由后台写回或淘汰时落盘; 文件按extent整块扩展
+     * 真实页数在正常关闭时记入第一页, 崩溃后由Recover按日志截断, 因此不需要每页fsync;
+     * 截断后仍可能留下未写日志、未落盘的全0页, 由DataManager打开时的全量扫描重新初始化
+     */
     @Override
     public int newPage(byte[] initData) {
         int pano = pageNumbers.incrementAndGet();
-        Page pg = new PageImpl(pano,initData,null);
-        flush(pg);
+        if (pano == 0) {
+            // 页号已用尽全部32位
+            Panic.panic(Error.PageNumberOverflowException);
+        }
+        ensureAllocated(pano);
+        Page pg = new PageImpl(pano, initData, this);
+        pg.setDirty(true);
+        if (!putResident(Integer.toUnsignedLong(pano), pg)) {
+            // 缓存被钉满时退回为直接写盘
+            flush(pg, false);
+        }
         return pano;
     }
 
+    private void ensureAllocated(int pano) {
+        if (Integer.compareUnsigned(pano, allocatedPages) <= 0) {
+            return;
+        }
+        extendLock.lock();
+        try {
+            if (Integer.compareUnsigned(pano, allocatedPages) <= 0) {
+                return;
+            }
+            long target = (Integer.toUnsignedLong(pano) + extentPages - 1) / extentPages * extentPages;
+            target = Math.min(target, MAX_PAGES);
+            setFileLength(target * pageSize);
+            allocatedPages = (int) target;
+        } catch (IOException e) {
+            Panic.panic(e);
+        } finally {
+            extendLock.unlock();
+        }
+    }
+
     @Override
     public Page getPage(int pgno) throws Exception {
-        return get((long) pgno);
+        return get(Integer.toUnsignedLong(pgno));
     }
 
     @Override
     public void release(Page page) {
-        release((long) page.getPageNumber());
+        release(Integer.toUnsignedLong(page.getPageNumber()));
     }
 
     @Override
     public void truncateByBgno(int maxPgno) {
-        long size = pageOffset(maxPgno + 1);
+        long size = Integer.toUnsignedLong(maxPgno) * pageSize;
+        extendLock.lock();
         try{
-            file.setLength(size);
+            setFileLength(size);
+            allocatedPages = maxPgno;
         }catch (IOException e){
             Panic.panic(e);
+        }finally {
+            extendLock.unlock();
         }
         pageNumbers.set(maxPgno);
     }
@@ -117,24 +476,177 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache{
         return pageNumbers.intValue();
     }
 
+    @Override
+    public int getSegmentPages() {
+        return 0;
+    }
+
+    @Override
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    @Override
+    public String status() {
+        CacheStats stats = getStats();
+        StringBuilder sb = new StringBuilder();
+        sb.append("page_size: ").append(pageSize).append("\n");
+        sb.append("pages: ").append(Integer.toUnsignedString(getPageNumber())).append("\n");
+        sb.append("pool_capacity: ").append(getMaxResource()).append("\n");
+        sb.append("pool_resident: ").append(residentCount()).append("\n");
+        sb.append("pool_pinned: ").append(pinnedCount()).append("\n");
+        sb.append("hits: ").append(stats.hits.sum()).append("\n");
+        sb.append("misses: ").append(stats.misses.sum()).append("\n");
+        sb.append(String.format("hit_ratio: %.4f%n", stats.hitRatio()));
+        sb.append("evictions: ").append(stats.evictions.sum()).append("\n");
+        sb.append("dirty_writebacks: ").append(stats.writeBacks.sum()).append("\n");
+        stats.readLatency.describe("page_read_latency", sb);
+        stats.flushLatency.describe("page_flush_latency", sb);
+        return sb.toString();
+    }
+
+    //显式刷页(如第一页的校验字节)要求立即落盘
     @Override
     public void flushPage(Page pg) {
-        flush(pg);
+        flush(pg, true);
+    }
+
+    /**
+     * 写回当前所有脏页: 按页号排序, 页号连续的页面合并为一次写, 每批fsync一次
+     * 写回期间钉住的页面不能被淘汰, 每批最多钉住缓存容量的四分之一, 小缓冲池中前台缺页时仍有页框可淘汰
+     */
+    void writeDirtyPages() {
+        int batchSize = Math.max(1, Math.min(MAX_WRITE_BATCH, getMaxResource() / 4));
+        List<Integer> pages = residentPages();
+        int next = 0;
+        while (next < pages.size()) {
+            List<Page> batch = new ArrayList<>();
+            try {
+                while (next < pages.size() && batch.size() < batchSize) {
+                    Page pg = pinIfResident(Integer.toUnsignedLong(pages.get(next++)));
+                    if (pg == null) {
+                        continue;
+                    }
+                    if (pg.isDirty()) {
+                        batch.add(pg);
+                    } else {
+                        pg.release();
+                    }
+                }
+                int runStart = 0;
+                for (int i = 1; i <= batch.size(); i++) {
+                    if (i == batch.size() || batch.get(i).getPageNumber() != batch.get(i - 1).getPageNumber() + 1) {
+                        writeRun(batch.subList(runStart, i));
+                        runStart = i;
+                    }
+                }
+                if (!batch.isEmpty()) {
+                    sync();
+                }
+            } catch (IOException e) {
+                Panic.panic(e);
+            } finally {
+                for (Page pg : batch) {
+                    pg.release();
+                }
+            }
+        }
+    }
+
+    /**
+     * 把页号连续的一组页面拼成一个缓冲区, 一次按位置写出; 压缩后的页面长度不一, 单独写到各自的位置
+     * 被钉住的页面上可能有DataItem修改正在进行(日志尚未写出), 这样的页面保持为脏, 留到下一轮, 缓冲区在此断开
+     */
+    private void writeRun(List<Page> run) {
+        List<Lock> locks = lockPages(run);
+        try {
+            long start = System.nanoTime();
+            int written = 0;
+            ByteBuffer buf = writeBuf;
+            buf.clear();
+            int bufStart = 0;
+            for (Page pg : run) {
+                int pano = pg.getPageNumber();
+                if (!pg.tryLockSnapshot()) {
+                    bufStart = writeBuffered(buf, bufStart);
+                    continue;
+                }
+                ByteBuffer stored;
+                try {
+                    // 先清脏位再拷贝, 拷贝之后的新修改会重新置脏, 留给下一轮
+                    pg.setDirty(false);
+                    stored = encode(pano, pg.getData());
+                    if (stored == null) {
+                        buf.put(pg.getData());
+                        if (bufStart == 0) {
+                            bufStart = pano;
+                        }
+                    }
+                } finally {
+                    pg.unlockSnapshot();
+                }
+                written++;
+                if (stored != null) {
+                    bufStart = writeBuffered(buf, bufStart);
+                    writeAt(stored, pageOffset(pano));
+                }
+            }
+            writeBuffered(buf, bufStart);
+            getStats().flushLatency.record(System.nanoTime() - start);
+            getStats().writeBacks.add(written);
+        } catch (IOException e) {
+            Panic.panic(e);
+        } finally {
+            for (Lock lock : locks) {
+                lock.unlock();
+            }
+        }
     }
 
-    private void flush(Page page){
+    //写出缓冲区中从bufStart开始的连续页面并清空缓冲区, 返回0表示缓冲区已空
+    private int writeBuffered(ByteBuffer buf, int bufStart) throws IOException {
+        if (bufStart != 0) {
+            buf.flip();
+            writeAt(buf, pageOffset(bufStart));
+            buf.clear();
+        }
+        return 0;
+    }
+
+    //按分段下标升序加锁, 避免与单页写回死锁
+    private List<Lock> lockPages(List<Page> pages) {
+        TreeSet<Integer> stripes = new TreeSet<>();
+        for (Page pg : pages) {
+            stripes.add(Integer.remainderUnsigned(pg.getPageNumber(), WRITE_STRIPES));
+        }
+        List<Lock> locks = new ArrayList<>(stripes.size());
+        for (int stripe : stripes) {
+            writeLocks[stripe].lock();
+            locks.add(writeLocks[stripe]);
+        }
+        return locks;
+    }
+
+    //淘汰时的写回(页面已无引用)与第一页的显式刷写, 页面上不会有DataItem修改正在进行
+    private void flush(Page page, boolean force){
         int pano = page.getPageNumber();
         long offset = pageOffset(pano);
-        fileLock.lock();
-        ByteBuffer buf = ByteBuffer.wrap(page.getData());
+        Lock writeLock = writeLocks[Integer.remainderUnsigned(pano, WRITE_STRIPES)];
+        writeLock.lock();
+        long start = System.nanoTime();
         try {
-            fc.position(offset);
-            fc.write(buf);
-            fc.force(false);
+            page.setDirty(false);
+            ByteBuffer stored = encode(pano, page.getData());
+            writeAt(stored == null ? ByteBuffer.wrap(page.getData()) : stored, offset);
+            if (force) {
+                sync();
+            }
         } catch (IOException e) {
             Panic.panic(e);
         }finally {
-            fileLock.unlock();
+            writeLock.unlock();
         }
+        getStats().flushLatency.record(System.nanoTime() - start);
+        getStats().writeBacks.increment();
     }
 }
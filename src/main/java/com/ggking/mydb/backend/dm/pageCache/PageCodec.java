@@ -0,0 +1,69 @@
+package com.ggking.mydb.backend.dm.pageCache;
+
+import com.ggking.mydb.backend.utils.Lz4;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 页面在磁盘上的压缩格式
+ * [0xFFFE]2字节 [0xC7]1字节 [CompressedLength]2字节 [LZ4块]
+ * 未压缩的页面不会以这三个字节开头: 特殊页以0xFFFF开头; 页面最大32KB, 数据页的FSO/DataStart不超过0x8000;
+ * 第一页的开头全为0, 且从不压缩
+ */
+class PageCodec {
+
+    static final int LEN_HEADER = 5;
+    private static final byte MARKER_0 = (byte) 0xFF;
+    private static final byte MARKER_1 = (byte) 0xFE;
+    private static final byte MARKER_2 = (byte) 0xC7;
+
+    //每个写回线程各自的输出缓冲区与哈希表, 写回时不再按页分配
+    private static class Scratch {
+        byte[] out = new byte[0];
+        final int[] table = new int[Lz4.HASH_TABLE_SIZE];
+    }
+
+    private static final ThreadLocal<Scratch> SCRATCH = ThreadLocal.withInitial(Scratch::new);
+
+    /**
+     * 压缩后至少省下1/8页时返回压缩格式的字节, 否则返回null, 按原样写出
+     * 返回的缓冲区属于当前线程, 下一次encode之前有效, 调用者需在此之前写出
+     */
+    static ByteBuffer encode(byte[] page) {
+        int budget = page.length - page.length / 8;
+        Scratch scratch = SCRATCH.get();
+        if (scratch.out.length < budget) {
+            scratch.out = new byte[budget];
+        }
+        byte[] stored = scratch.out;
+        int len = Lz4.compress(page, page.length, stored, LEN_HEADER, budget - LEN_HEADER, scratch.table);
+        if (len < 0) {
+            return null;
+        }
+        stored[0] = MARKER_0;
+        stored[1] = MARKER_1;
+        stored[2] = MARKER_2;
+        stored[3] = (byte) (len >>> 8);
+        stored[4] = (byte) len;
+        return ByteBuffer.wrap(stored, 0, LEN_HEADER + len);
+    }
+
+    //raw的前length字节是否为压缩页的开头
+    static boolean isCompressed(byte[] raw, int length) {
+        return length >= LEN_HEADER && raw[0] == MARKER_0 && raw[1] == MARKER_1 && raw[2] == MARKER_2;
+    }
+
+    //压缩页在磁盘上占用的字节数
+    static int storedLength(byte[] raw) {
+        return LEN_HEADER + (((raw[3] & 0xFF) << 8) | (raw[4] & 0xFF));
+    }
+
+    //解压到frame, 数据损坏时返回false
+    static boolean decode(byte[] stored, byte[] frame) {
+        int len = storedLength(stored) - LEN_HEADER;
+        if (LEN_HEADER + len > stored.length) {
+            return false;
+        }
+        return Lz4.decompress(stored, LEN_HEADER, len, frame, 0, frame.length) == frame.length;
+    }
+}
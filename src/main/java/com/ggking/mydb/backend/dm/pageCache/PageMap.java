@@ -0,0 +1,115 @@
+package com.ggking.mydb.backend.dm.pageCache;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * 压缩页在磁盘上的实际长度, 读取时据此只读出压缩后的字节
+ * 只是提示: 文件缺失或过时(异常退出)时读取按页首标记判断, 读少了再补读整页
+ * 页号是无符号32位整数, 按64K页分块, 只为出现过压缩页的块分配
+ * 正常关闭时写入.db旁的.pmap文件: [ChunkCount]4字节 ([ChunkIndex]4字节 [Length]2字节 * 64K) * ChunkCount,
+ * 块内下标为页号的低16位, 0表示整页读取
+ */
+class PageMap {
+
+    public static final String MAP_SUFFIX = ".pmap";
+
+    private static final int CHUNK_BITS = 16;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final int CHUNK_BYTES = 4 + CHUNK_SIZE * 2;
+
+    private Path path;
+    //下标为页号的高16位; 读取不加锁, 读到过时的值只会多读或补读
+    private volatile short[][] chunks;
+
+    PageMap(String dbPath) {
+        this.path = Paths.get(dbPath + MAP_SUFFIX);
+        this.chunks = new short[1 << (32 - CHUNK_BITS)][];
+    }
+
+    int get(int pgno) {
+        short[] chunk = chunks[pgno >>> CHUNK_BITS];
+        return chunk == null ? 0 : chunk[pgno & (CHUNK_SIZE - 1)] & 0xFFFF;
+    }
+
+    synchronized void set(int pgno, int length) {
+        short[] chunk = chunks[pgno >>> CHUNK_BITS];
+        if (chunk == null) {
+            if (length == 0) {
+                return;
+            }
+            chunk = new short[CHUNK_SIZE];
+            chunks[pgno >>> CHUNK_BITS] = chunk;
+        }
+        chunk[pgno & (CHUNK_SIZE - 1)] = (short) length;
+    }
+
+    void load() {
+        try {
+            if (!Files.exists(path)) {
+                return;
+            }
+            long size = Files.size(path);
+            if (size < 4) {
+                return;
+            }
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+                int count = in.readInt();
+                if (count < 0 || count > chunks.length || size != 4 + (long) count * CHUNK_BYTES) {
+                    return;
+                }
+                short[][] loaded = new short[chunks.length][];
+                for (int i = 0; i < count; i++) {
+                    int idx = in.readInt();
+                    if (idx < 0 || idx >= loaded.length) {
+                        return;
+                    }
+                    short[] chunk = new short[CHUNK_SIZE];
+                    for (int j = 0; j < CHUNK_SIZE; j++) {
+                        chunk[j] = in.readShort();
+                    }
+                    loaded[idx] = chunk;
+                }
+                chunks = loaded;
+            }
+        } catch (IOException ignored) {
+            // 读不出时全部整页读取
+        }
+    }
+
+    //先写临时文件再改名, 与预热列表相同
+    synchronized void save() {
+        int count = 0;
+        for (short[] chunk : chunks) {
+            if (chunk != null) {
+                count++;
+            }
+        }
+        Path tmp = Paths.get(path + ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+                out.writeInt(count);
+                for (int idx = 0; idx < chunks.length; idx++) {
+                    short[] chunk = chunks[idx];
+                    if (chunk == null) {
+                        continue;
+                    }
+                    out.writeInt(idx);
+                    for (short length : chunk) {
+                        out.writeShort(length);
+                    }
+                }
+            }
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ignored) {
+            // 映射只是提示, 写失败不影响数据
+        }
+    }
+}
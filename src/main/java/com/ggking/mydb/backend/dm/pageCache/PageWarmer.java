@@ -0,0 +1,100 @@
+package com.ggking.mydb.backend.dm.pageCache;
+
+import com.ggking.mydb.backend.utils.Parser;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 缓冲池预热
+ * 关闭时(以及后台写回线程定期)把驻留页号写入.db旁的.warm文件: [PageCount]4字节 [Pgno]4字节 * PageCount
+ * 打开时由后台线程按页号顺序把这些页读回缓存, 前台同时正常服务; 预热只是提示, 文件缺失或损坏时直接忽略
+ */
+class PageWarmer implements Runnable {
+
+    public static final String WARM_SUFFIX = ".warm";
+
+    private PageCacheImpl pc;
+    private Path path;
+    private Thread thread;
+    private volatile boolean closed;
+
+    PageWarmer(PageCacheImpl pc, String dbPath) {
+        this.pc = pc;
+        this.path = Paths.get(dbPath + WARM_SUFFIX);
+    }
+
+    //先写临时文件再改名, 崩溃时不会留下写了一半的列表; 写回线程与close可能同时保存, 共用同一个临时文件, 需串行
+    synchronized void save() {
+        List<Integer> pages = pc.residentPages();
+        byte[] raw = new byte[4 + pages.size() * 4];
+        System.arraycopy(Parser.int2Byte(pages.size()), 0, raw, 0, 4);
+        for (int i = 0; i < pages.size(); i++) {
+            System.arraycopy(Parser.int2Byte(pages.get(i)), 0, raw, 4 + i * 4, 4);
+        }
+        Path tmp = Paths.get(path + ".tmp");
+        try {
+            Files.write(tmp, raw);
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ignored) {
+            // 预热列表写失败不影响数据
+        }
+    }
+
+    void start() {
+        thread = new Thread(this, "page-warmer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    void close() {
+        closed = true;
+        if (thread != null) {
+            try {
+                thread.join();
+            } catch (InterruptedException ignored) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        int[] pages = load();
+        for (int pgno : pages) {
+            if (closed || !pc.warmPage(pgno)) {
+                return;
+            }
+        }
+    }
+
+    private int[] load() {
+        byte[] raw;
+        try {
+            if (!Files.exists(path)) {
+                return new int[0];
+            }
+            raw = Files.readAllBytes(path);
+        } catch (IOException e) {
+            return new int[0];
+        }
+        if (raw.length < 4) {
+            return new int[0];
+        }
+        int count = Parser.parseInt(Arrays.copyOfRange(raw, 0, 4));
+        if (count < 0 || raw.length != 4 + count * 4) {
+            return new int[0];
+        }
+        int[] pages = new int[count];
+        for (int i = 0; i < count; i++) {
+            pages[i] = Parser.parseInt(Arrays.copyOfRange(raw, 4 + i * 4, 8 + i * 4));
+        }
+        // 页号按无符号数排序
+        return Arrays.stream(pages).boxed().sorted(Integer::compareUnsigned).mapToInt(Integer::intValue).toArray();
+    }
+}
@@ -0,0 +1,73 @@
+package com.ggking.mydb.backend.dm.pageCache;
+
+/**
+ * 后台脏页写回线程, 顺带定期保存缓冲池预热列表
+ * 周期性地把缓存中的脏页按页号排序后批量写回, 每批只fsync一次, 使前台淘汰时遇到的多为干净页
+ * 页面写回不需要强制落盘: 插入与整理先写日志再改页面, DataItem更新在after中才写日志, 更新期间该页不被写回,
+ * 因此写出的页面中的修改都已写入并fsync了日志, 崩溃后由Recover重做
+ */
+class PageWriter implements Runnable {
+
+    //定期保存预热列表的间隔
+    private static final long WARM_SAVE_INTERVAL_MS = 60_000;
+
+    private PageCacheImpl pc;
+    private long intervalMs;
+    private Thread thread;
+    private volatile boolean closed;
+    private final Object signal = new Object();
+    private long lastWarmSave = System.currentTimeMillis();
+
+    PageWriter(PageCacheImpl pc, long intervalMs) {
+        this.pc = pc;
+        this.intervalMs = intervalMs;
+    }
+
+    void start() {
+        thread = new Thread(this, "page-writer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    //缓存压力大时提前唤醒
+    void wakeup() {
+        synchronized (signal) {
+            signal.notify();
+        }
+    }
+
+    void close() {
+        closed = true;
+        if (thread == null) {
+            return;
+        }
+        wakeup();
+        try {
+            thread.join();
+        } catch (InterruptedException ignored) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void run() {
+        while (!closed) {
+            synchronized (signal) {
+                try {
+                    signal.wait(intervalMs);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            if (closed) {
+                return;
+            }
+            pc.writeDirtyPages();
+            long now = System.currentTimeMillis();
+            if (now - lastWarmSave >= WARM_SAVE_INTERVAL_MS) {
+                pc.saveWarmList();
+                lastWarmSave = now;
+            }
+        }
+    }
+}
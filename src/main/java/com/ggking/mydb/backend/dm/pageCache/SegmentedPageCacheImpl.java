@@ -0,0 +1,199 @@
+package com.ggking.mydb.backend.dm.pageCache;
+
+import com.ggking.mydb.backend.dm.DataManagerOptions;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 分段存储的页面缓存
+ * 数据按固定大小的段分散在多个文件中: 第0段是.db文件本身(第一页总在其中), 第i段为.db.i, 每段各有一个通道,
+ * 文件不会无限增长, 各段也可以通过符号链接放到不同的设备上, 读写按页号落到各自的文件, 落盘时并行force各段
+ * 除最后一段外每段都是满的, 扩展时按需建立新段, 截断时删除多余的段
+ */
+public class SegmentedPageCacheImpl extends PageCacheImpl {
+
+    private static class Segment {
+        final RandomAccessFile file;
+        final FileChannel fc;
+        //上次落盘之后是否写过
+        volatile boolean dirty;
+
+        Segment(RandomAccessFile file, FileChannel fc) {
+            this.file = file;
+            this.fc = fc;
+        }
+    }
+
+    private String path;
+    private int segmentPages;
+    private long segmentBytes;
+    //写时复制, 只在持有extendLock时替换, 读写按引用快照访问
+    private volatile Segment[] segments;
+
+    public SegmentedPageCacheImpl(String path, RandomAccessFile file, FileChannel fc, int maxResource, int pageSize, int segmentPages, DataManagerOptions options) throws IOException {
+        this(path, openSegments(path, file, fc), maxResource, pageSize, segmentPages, options);
+    }
+
+    private SegmentedPageCacheImpl(String path, Segment[] segments, int maxResource, int pageSize, int segmentPages, DataManagerOptions options) throws IOException {
+        super(segments[0].file, segments[0].fc, maxResource, pageSize, options, totalLength(segments));
+        this.path = path;
+        this.segmentPages = segmentPages;
+        this.segmentBytes = (long) segmentPages * pageSize;
+        this.segments = segments;
+    }
+
+    //依次打开已存在的段, 遇到第一个不存在的段号为止
+    private static Segment[] openSegments(String path, RandomAccessFile file, FileChannel fc) throws IOException {
+        List<Segment> list = new ArrayList<>();
+        list.add(new Segment(file, fc));
+        for (int i = 1; ; i++) {
+            File f = segmentFile(path, i);
+            if (!f.exists()) {
+                break;
+            }
+            RandomAccessFile raf = new RandomAccessFile(f, "rw");
+            list.add(new Segment(raf, raf.getChannel()));
+        }
+        return list.toArray(new Segment[0]);
+    }
+
+    private static long totalLength(Segment[] segments) throws IOException {
+        long length = 0;
+        for (Segment seg : segments) {
+            length += seg.file.length();
+        }
+        return length;
+    }
+
+    static File segmentFile(String path, int idx) {
+        return new File(path + DB_SUFFIX + "." + idx);
+    }
+
+    @Override
+    public int getSegmentPages() {
+        return segmentPages;
+    }
+
+    //超出最后一段的部分保持为0
+    @Override
+    protected void readAt(ByteBuffer buf, long offset) throws IOException {
+        Segment[] segs = segments;
+        while (buf.hasRemaining()) {
+            long pos = offset + buf.position();
+            int idx = (int) (pos / segmentBytes);
+            if (idx >= segs.length) {
+                break;
+            }
+            long start = pos % segmentBytes;
+            ByteBuffer chunk = slice(buf, start);
+            int n = segs[idx].fc.read(chunk, start);
+            if (n < 0) {
+                break;
+            }
+            buf.position(buf.position() + n);
+        }
+    }
+
+    @Override
+    protected void writeAt(ByteBuffer buf, long offset) throws IOException {
+        Segment[] segs = segments;
+        while (buf.hasRemaining()) {
+            long pos = offset + buf.position();
+            int idx = (int) (pos / segmentBytes);
+            if (idx >= segs.length) {
+                throw new IOException("segment " + idx + " not allocated");
+            }
+            long start = pos % segmentBytes;
+            ByteBuffer chunk = slice(buf, start);
+            int n = segs[idx].fc.write(chunk, start);
+            segs[idx].dirty = true;
+            buf.position(buf.position() + n);
+        }
+    }
+
+    //buf中落在当前段内的部分, 不超过段尾
+    private ByteBuffer slice(ByteBuffer buf, long start) {
+        ByteBuffer chunk = buf.duplicate();
+        chunk.limit((int) Math.min(buf.limit(), buf.position() + (segmentBytes - start)));
+        return chunk;
+    }
+
+    /**
+     * 前面的段补满, 最后一段设为剩余长度, 多出的段关闭后删除
+     */
+    @Override
+    protected void setFileLength(long size) throws IOException {
+        Segment[] segs = segments;
+        int count = (int) Math.max(1, (size + segmentBytes - 1) / segmentBytes);
+        Segment[] next = Arrays.copyOf(segs, count);
+        for (int i = segs.length; i < count; i++) {
+            RandomAccessFile raf = new RandomAccessFile(segmentFile(path, i), "rw");
+            next[i] = new Segment(raf, raf.getChannel());
+        }
+        for (int i = 0; i < count; i++) {
+            long len = i < count - 1 ? segmentBytes : size - (long) i * segmentBytes;
+            if (next[i].file.length() != len) {
+                next[i].file.setLength(len);
+            }
+        }
+        segments = next;
+        for (int i = count; i < segs.length; i++) {
+            segs[i].fc.close();
+            segs[i].file.close();
+            if (!segmentFile(path, i).delete()) {
+                throw new IOException("cannot delete segment " + i);
+            }
+        }
+    }
+
+    //各段互不相关, 多个段都有写入时并行落盘
+    @Override
+    protected void sync() throws IOException {
+        Segment[] segs = segments;
+        List<Segment> dirty = new ArrayList<>();
+        for (Segment seg : segs) {
+            if (seg.dirty) {
+                seg.dirty = false;
+                dirty.add(seg);
+            }
+        }
+        if (dirty.isEmpty()) {
+            return;
+        }
+        if (dirty.size() == 1) {
+            dirty.get(0).fc.force(false);
+            return;
+        }
+        try {
+            dirty.parallelStream().forEach(seg -> {
+                try {
+                    seg.fc.force(false);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    @Override
+    protected void closeFile() throws IOException {
+        for (Segment seg : segments) {
+            seg.dirty = true;
+        }
+        sync();
+        for (Segment seg : segments) {
+            seg.fc.close();
+            seg.file.close();
+        }
+    }
+}
@@ -1,54 +1,84 @@
 package com.ggking.mydb.backend.dm.pageIndex;
 
-import com.ggking.mydb.backend.dm.pageCache.PageCache;
-
-import java.util.ArrayList;
-import java.util.List;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
 
+/**
+ * 按剩余空间分桶的页面索引, 每个桶是一个无锁双端队列, 多个插入线程取放页面时互不阻塞
+ * 每个页面至多有一个有效的索引项, 由state记录: 在桶中时为其索引项, 被select取走后为TAKEN, 直到取走者用add放回;
+ * 页内整理腾出空间时用offer登记, 页面已被取走(包括被插入亲和保留)时跳过, 已在桶中时替换原索引项
+ * 被替换的索引项从桶中移除, 来不及移除的在select时按state识别为过时并丢弃
+ */
 public class PageIndex {
 
     private static final int INTERVALS_NO = 40;
-    private static final int THRESHOLD = PageCache.PAGE_SIZE / INTERVALS_NO;
+    private static final PageInfo TAKEN = new PageInfo(0, 0);
+
+    private int threshold;
 
-    private Lock lock;
-    private List<PageInfo>[] lists;
+    private ConcurrentLinkedDeque<PageInfo>[] lists;
+    private ConcurrentHashMap<Integer, PageInfo> state;
 
-    public PageIndex(){
-        lock = new ReentrantLock();
-        lists = new List[INTERVALS_NO + 1];
+    public PageIndex(int pageSize){
+        threshold = pageSize / INTERVALS_NO;
+        lists = new ConcurrentLinkedDeque[INTERVALS_NO + 1];
         for (int i = 0; i < INTERVALS_NO + 1; i++) {
-            lists[i] = new ArrayList<>();
+            lists[i] = new ConcurrentLinkedDeque<>();
         }
+        state = new ConcurrentHashMap<>();
     }
 
     public PageInfo select(int spaceSize){
-        lock.lock();
-        try{
-            int num = spaceSize/THRESHOLD;
-            if (num < INTERVALS_NO)num++;
-            while (num <= INTERVALS_NO){
-                if (lists[num].size() == 0){
-                    num++;
-                    continue;
-                }
-                return lists[num].remove(0);
+        int num = spaceSize/threshold;
+        if (num < INTERVALS_NO)num++;
+        while (num <= INTERVALS_NO){
+            PageInfo pi = lists[num].pollFirst();
+            if (pi == null){
+                num++;
+                continue;
+            }
+            if (state.replace(pi.pgno, pi, TAKEN)){
+                return pi;
             }
-            return null;
-        }finally {
-            lock.unlock();
+            // 过时的索引项, 页面已有新的索引项或已被取走
         }
+        return null;
     }
 
+    //取走者放回页面, 或登记新页面; 放回桶头: 刚插入过的页面大概率还在缓存中, 下一次优先选它
     public void add(int pgno,int freeSpace){
-        lock.lock();
-        try{
-            int num = freeSpace / THRESHOLD;
-            lists[num].add(new PageInfo(pgno,freeSpace));
-        }finally {
-            lock.unlock();
+        PageInfo pi = new PageInfo(pgno, freeSpace);
+        PageInfo old = state.put(pgno, pi);
+        unlist(old);
+        lists[bucket(freeSpace)].addFirst(pi);
+    }
+
+    //页内整理等非取走者登记剩余空间; 页面被取走时由取走者放回, 此处跳过
+    public void offer(int pgno, int freeSpace){
+        PageInfo pi = new PageInfo(pgno, freeSpace);
+        PageInfo[] old = new PageInfo[1];
+        PageInfo cur = state.compute(pgno, (k, v) -> {
+            if (v == TAKEN) {
+                return TAKEN;
+            }
+            old[0] = v;
+            return pi;
+        });
+        if (cur != pi){
+            return;
         }
+        unlist(old[0]);
+        lists[bucket(freeSpace)].addFirst(pi);
+    }
+
+    private void unlist(PageInfo old){
+        if (old != null && old != TAKEN){
+            lists[bucket(old.freeSpace)].removeFirstOccurrence(old);
+        }
+    }
+
+    private int bucket(int freeSpace){
+        return Math.min(INTERVALS_NO, freeSpace / threshold);
     }
 
 }
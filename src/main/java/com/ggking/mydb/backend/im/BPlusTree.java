@@ -7,7 +7,6 @@ import com.ggking.mydb.backend.tm.TransactionManagerImpl;
 import com.ggking.mydb.backend.utils.Parser;
 
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
@@ -40,7 +39,7 @@ public class BPlusTree {
         bootLock.lock();
         try{
             SubArray sa = bootDataItem.data();
-            return Parser.parseLong(Arrays.copyOfRange(sa.raw,sa.start,sa.start + 9));
+            return Parser.parseLong(sa.raw, sa.start);
         }finally {
             bootLock.unlock();
         }
@@ -96,12 +95,25 @@ public class BPlusTree {
             if (res.siblingUid == 0){
                 break;
             }else {
+                prefetchRecords(res.uids);
                 leafUid = res.siblingUid;
             }
         }
         return uids;
     }
 
+    //调用者在扫描结束后才逐条读取命中的记录; 还要继续扫描兄弟叶子时, 先预读本叶子命中记录所在的页面, 同一页只提示一次
+    private void prefetchRecords(List<Long> recordUids) {
+        long lastPage = -1;
+        for (long uid : recordUids) {
+            long page = uid >>> 32;
+            if (page != lastPage) {
+                dm.prefetch(uid);
+                lastPage = page;
+            }
+        }
+    }
+
     public void insert(long key,long uid)throws Exception{
         long rootUid = rootUid();
        InsertRes res =  insert(rootUid,uid,key);
@@ -46,7 +46,7 @@ public class Node {
     }
 
     static int getRawNoKeys(SubArray raw){
-        return Parser.parseInt(Arrays.copyOfRange(raw.raw,raw.start + NO_KEYS_OFFSET,raw.start + NO_KEYS_OFFSET + 2));
+        return Parser.parseShort(Arrays.copyOfRange(raw.raw,raw.start + NO_KEYS_OFFSET,raw.start + NO_KEYS_OFFSET + 2));
     }
 
     static void setRawSibling(SubArray raw, long sibling) {
@@ -54,7 +54,7 @@ public class Node {
     }
 
     static long getRawSibling(SubArray raw) {
-        return Parser.parseLong(Arrays.copyOfRange(raw.raw, raw.start + SIBLING_OFFSET, raw.start + SIBLING_OFFSET + 8));
+        return Parser.parseLong(raw.raw, raw.start + SIBLING_OFFSET);
     }
 
     static void setRawKthSon(SubArray raw,long uid,int kth){
@@ -64,7 +64,7 @@ public class Node {
 
     static long getRawKthSon(SubArray raw, int kth) {
         int offset = raw.start + NODE_HEADER_SIZE + kth * (8 * 2);
-        return Parser.parseLong(Arrays.copyOfRange(raw.raw, offset, offset + 8));
+        return Parser.parseLong(raw.raw, offset);
     }
 
     static void setRawKthKey(SubArray raw, long key, int kth) {
@@ -74,7 +74,7 @@ public class Node {
 
     static long getRawKthKey(SubArray raw, int kth) {
         int offset = raw.start + NODE_HEADER_SIZE + kth * (8 * 2) + 8;
-        return Parser.parseLong(Arrays.copyOfRange(raw.raw, offset, offset + 8));
+        return Parser.parseLong(raw.raw, offset);
     }
 
     static void copyRawFromKth(SubArray from, SubArray to, int kth) {
@@ -48,6 +48,9 @@ public class Parser {
                 case "show":
                     stat = parseShow(tokenizer);
                     break;
+                case "set":
+                    stat = parseSet(tokenizer);
+                    break;
                 default:
                     throw Error.InvalidCommandException;
             }
@@ -77,9 +80,37 @@ public class Parser {
         if("".equals(tmp)) {
             return new Show();
         }
+        if("status".equals(tmp)) {
+            tokenizer.pop();
+            Show show = new Show();
+            show.status = true;
+            return show;
+        }
         throw Error.InvalidCommandException;
     }
 
+    private static Set parseSet(Tokenizer tokenizer) throws Exception {
+        Set set = new Set();
+        String name = tokenizer.peek();
+        if(!isName(name)) {
+            throw Error.InvalidCommandException;
+        }
+        set.name = name;
+        tokenizer.pop();
+
+        if(!"=".equals(tokenizer.peek())) {
+            throw Error.InvalidCommandException;
+        }
+        tokenizer.pop();
+
+        set.value = tokenizer.peek();
+        if("".equals(set.value)) {
+            throw Error.InvalidCommandException;
+        }
+        tokenizer.pop();
+        return set;
+    }
+
     private static Update parseUpdate(Tokenizer tokenizer) throws Exception {
         Update update = new Update();
         update.tableName = tokenizer.peek();
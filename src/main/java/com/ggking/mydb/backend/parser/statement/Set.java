@@ -0,0 +1,7 @@
+package com.ggking.mydb.backend.parser.statement;
+
+//set name = value, 运行时调整参数
+public class Set {
+    public String name;
+    public String value;
+}
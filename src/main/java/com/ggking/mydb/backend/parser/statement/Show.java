@@ -1,4 +1,6 @@
 package com.ggking.mydb.backend.parser.statement;
 
 public class Show {
+    //show status: 展示缓冲池运行统计
+    public boolean status;
 }
@@ -39,6 +39,9 @@ public class Executor {
             byte[] res = tbm.abort(xid);
             xid = 0;
             return res;
+        } else if(Set.class.isInstance(stat)) {
+            // 运行参数与事务无关, 不开启事务
+            return tbm.set((Set)stat);
         } else {
             return execute2(stat);
         }
@@ -56,7 +59,11 @@ public class Executor {
         try {
             byte[] res = null;
             if(Show.class.isInstance(stat)) {
-                res = tbm.show(xid);
+                if (((Show) stat).status) {
+                    res = tbm.showStatus();
+                } else {
+                    res = tbm.show(xid);
+                }
             } else if(Create.class.isInstance(stat)) {
                 res = tbm.create(xid, (Create)stat);
             } else if(Select.class.isInstance(stat)) {
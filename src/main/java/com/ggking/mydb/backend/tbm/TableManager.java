@@ -11,6 +11,8 @@ public interface TableManager {
     byte[] abort(long xid);
 
     byte[] show(long xid);
+    byte[] showStatus();
+    byte[] set(Set set) throws Exception;
     byte[] create(long xid, Create create) throws Exception;
 
     byte[] insert(long xid, Insert insert) throws Exception;
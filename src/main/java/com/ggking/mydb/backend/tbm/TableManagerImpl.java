@@ -1,6 +1,8 @@
 package com.ggking.mydb.backend.tbm;
 
 import com.ggking.mydb.backend.dm.DataManager;
+import com.ggking.mydb.backend.utils.Parser;
+import com.ggking.mydb.common.Error;
 import com.ggking.mydb.backend.parser.statement.*;
 import com.ggking.mydb.backend.vm.VersionManager;
 
@@ -49,6 +51,23 @@ public class TableManagerImpl implements  TableManager{
         return new byte[0];
     }
 
+    @Override
+    public byte[] showStatus() {
+        return dm.status().getBytes();
+    }
+
+    @Override
+    public byte[] set(Set set) throws Exception {
+        switch (set.name) {
+            case "buffer_pool":
+                dm.resizeBufferPool(Parser.parseMemSize(set.value));
+                break;
+            default:
+                throw Error.InvalidCommandException;
+        }
+        return ("set " + set.name + " = " + set.value).getBytes();
+    }
+
     @Override
     public byte[] create(long xid, Create create) throws Exception {
         return new byte[0];
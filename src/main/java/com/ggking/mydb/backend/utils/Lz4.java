@@ -0,0 +1,162 @@
+package com.ggking.mydb.backend.utils;
+
+import java.util.Arrays;
+
+/**
+ * LZ4块格式的纯Java实现, 只做单遍贪心匹配, 追求速度而不是压缩率
+ * 序列: [Token]1字节(高4位字面量长度, 低4位匹配长度-4) [扩展字面量长度] [字面量] [Offset]2字节小端 [扩展匹配长度]
+ * 按格式要求最后5字节总是字面量, 最后一个匹配在结尾12字节之前开始; 最后一个序列只有字面量
+ */
+public class Lz4 {
+
+    private static final int MIN_MATCH = 4;
+    private static final int LAST_LITERALS = 5;
+    private static final int MF_LIMIT = 12;
+    private static final int MAX_OFFSET = 0xFFFF;
+    private static final int HASH_LOG = 12;
+    //compress所需哈希表的长度, 频繁压缩的调用者可自备一张反复使用
+    public static final int HASH_TABLE_SIZE = 1 << HASH_LOG;
+
+    /**
+     * 压缩src[0, srcLen)到dst, 返回压缩后的长度; dst放不下时返回-1
+     */
+    public static int compress(byte[] src, int srcLen, byte[] dst) {
+        return compress(src, srcLen, dst, 0, dst.length, new int[HASH_TABLE_SIZE]);
+    }
+
+    /**
+     * 压缩src[0, srcLen)到dst[dstOff, dstOff + dstLen), 返回压缩后的长度; 放不下时返回-1
+     * table为长度HASH_TABLE_SIZE的哈希表, 内容会被覆盖
+     */
+    public static int compress(byte[] src, int srcLen, byte[] dst, int dstOff, int dstLen, int[] table) {
+        Arrays.fill(table, -1);
+        int anchor = 0;
+        int ip = 0;
+        int op = dstOff;
+        int opEnd = dstOff + dstLen;
+        int limit = srcLen - MF_LIMIT;
+        while (ip < limit) {
+            int seq = readInt(src, ip);
+            int h = hash(seq);
+            int ref = table[h];
+            table[h] = ip;
+            if (ref < 0 || ip - ref > MAX_OFFSET || readInt(src, ref) != seq) {
+                ip++;
+                continue;
+            }
+            int matchLen = MIN_MATCH;
+            int maxMatch = srcLen - LAST_LITERALS - ip;
+            while (matchLen < maxMatch && src[ref + matchLen] == src[ip + matchLen]) {
+                matchLen++;
+            }
+            op = writeSequence(src, anchor, ip - anchor, dst, op, opEnd, ip - ref, matchLen);
+            if (op < 0) {
+                return -1;
+            }
+            ip += matchLen;
+            anchor = ip;
+        }
+        op = writeSequence(src, anchor, srcLen - anchor, dst, op, opEnd, 0, 0);
+        return op < 0 ? -1 : op - dstOff;
+    }
+
+    //matchLen为0表示最后一个只有字面量的序列
+    private static int writeSequence(byte[] src, int litStart, int litLen, byte[] dst, int op, int opEnd, int offset, int matchLen) {
+        int need = 1 + litLen + litLen / 255 + 1 + (matchLen == 0 ? 0 : 2 + (matchLen - MIN_MATCH) / 255 + 1);
+        if (op + need > opEnd) {
+            return -1;
+        }
+        int tokenPos = op++;
+        int token = Math.min(litLen, 15) << 4;
+        if (litLen >= 15) {
+            op = writeLength(dst, op, litLen - 15);
+        }
+        System.arraycopy(src, litStart, dst, op, litLen);
+        op += litLen;
+        if (matchLen > 0) {
+            dst[op++] = (byte) offset;
+            dst[op++] = (byte) (offset >>> 8);
+            int ml = matchLen - MIN_MATCH;
+            token |= Math.min(ml, 15);
+            if (ml >= 15) {
+                op = writeLength(dst, op, ml - 15);
+            }
+        }
+        dst[tokenPos] = (byte) token;
+        return op;
+    }
+
+    private static int writeLength(byte[] dst, int op, int len) {
+        while (len >= 255) {
+            dst[op++] = (byte) 255;
+            len -= 255;
+        }
+        dst[op++] = (byte) len;
+        return op;
+    }
+
+    /**
+     * 解压src[off, off + len)到dst[dstOff, dstOff + dstLen), 返回解压出的长度; 数据损坏时返回-1
+     */
+    public static int decompress(byte[] src, int off, int len, byte[] dst, int dstOff, int dstLen) {
+        int ip = off;
+        int end = off + len;
+        int op = dstOff;
+        int opEnd = dstOff + dstLen;
+        try {
+            while (ip < end) {
+                int token = src[ip++] & 0xFF;
+                int litLen = token >>> 4;
+                if (litLen == 15) {
+                    int b;
+                    do {
+                        b = src[ip++] & 0xFF;
+                        litLen += b;
+                    } while (b == 255);
+                }
+                if (ip + litLen > end || op + litLen > opEnd) {
+                    return -1;
+                }
+                System.arraycopy(src, ip, dst, op, litLen);
+                ip += litLen;
+                op += litLen;
+                if (ip == end) {
+                    break;
+                }
+                int offset = (src[ip] & 0xFF) | ((src[ip + 1] & 0xFF) << 8);
+                ip += 2;
+                if (offset == 0 || op - offset < dstOff) {
+                    return -1;
+                }
+                int matchLen = token & 0x0F;
+                if (matchLen == 15) {
+                    int b;
+                    do {
+                        b = src[ip++] & 0xFF;
+                        matchLen += b;
+                    } while (b == 255);
+                }
+                matchLen += MIN_MATCH;
+                if (op + matchLen > opEnd) {
+                    return -1;
+                }
+                // 匹配区可能与输出重叠, 逐字节复制
+                for (int i = 0; i < matchLen; i++) {
+                    dst[op + i] = dst[op - offset + i];
+                }
+                op += matchLen;
+            }
+        } catch (IndexOutOfBoundsException e) {
+            return -1;
+        }
+        return op - dstOff;
+    }
+
+    private static int readInt(byte[] buf, int pos) {
+        return (buf[pos] & 0xFF) | ((buf[pos + 1] & 0xFF) << 8) | ((buf[pos + 2] & 0xFF) << 16) | ((buf[pos + 3] & 0xFF) << 24);
+    }
+
+    private static int hash(int seq) {
+        return (seq * -1640531535) >>> (32 - HASH_LOG);
+    }
+}
@@ -3,6 +3,7 @@ package com.ggking.mydb.backend.utils;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
 
+import com.ggking.mydb.common.Error;
 import com.google.common.primitives.Bytes;
 
 public class Parser {
@@ -30,6 +31,15 @@ public class Parser {
         return buffer.getLong();
     }
 
+    //从buf[off]开始按大端序读8字节, 不复制数组
+    public static long parseLong(byte[] buf, int off) {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (buf[off + i] & 0xFF);
+        }
+        return value;
+    }
+
     public static byte[] long2Byte(long value) {
         return ByteBuffer.allocate(Long.SIZE / Byte.SIZE).putLong(value).array();
     }
@@ -54,5 +64,28 @@ public class Parser {
         return res;
     }
 
-}
+    //解析"64MB"形式的内存大小, 单位为KB、MB或GB
+    public static long parseMemSize(String memStr) throws Exception {
+        if (memStr == null || memStr.length() < 3) {
+            throw Error.InvalidMemException;
+        }
+        String unit = memStr.substring(memStr.length() - 2);
+        long memNum;
+        try {
+            memNum = Long.parseLong(memStr.substring(0, memStr.length() - 2));
+        } catch (NumberFormatException e) {
+            throw Error.InvalidMemException;
+        }
+        switch (unit) {
+            case "KB":
+                return memNum << 10;
+            case "MB":
+                return memNum << 20;
+            case "GB":
+                return memNum << 30;
+            default:
+                throw Error.InvalidMemException;
+        }
+    }
 
+}
@@ -1,9 +1,14 @@
 package com.ggking.mydb.backend.utils;
 
 public class Types {
-    public static long addressToUid(int pgno, short offset) {
+    public static long addressToUid(int pgno, int offset) {
         long u0 = (long)pgno;
-        long u1 = (long)offset;
+        long u1 = (long)(offset & 0xFFFF);
         return u0 << 32 | u1;
     }
+
+    //带槽目录的页面中页内位置为32位(槽号与代数), 见PageSlotted
+    public static long slotToUid(int pgno, int address) {
+        return (long) pgno << 32 | (address & 0xFFFFFFFFL);
+    }
 }
@@ -2,10 +2,15 @@ package com.ggking.mydb.backend.vm;
 
 import com.ggking.mydb.backend.common.SubArray;
 import com.ggking.mydb.backend.dm.dataItem.DataItem;
+import com.ggking.mydb.backend.dm.dataItem.DataItemImpl;
+import com.ggking.mydb.backend.utils.Panic;
 import com.ggking.mydb.backend.utils.Parser;
 import com.google.common.primitives.Bytes;
 
-import java.util.Arrays;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
 
 
  public class Entry {
@@ -39,6 +44,12 @@ import java.util.Arrays;
     public byte[] data(){
         dataItem.rLock();
         try {
+            if (dataItem.isOverflow()){
+                byte[] full = readOverflow();
+                byte[] data = new byte[full.length - OF_DATA];
+                System.arraycopy(full, OF_DATA, data, 0, data.length);
+                return data;
+            }
             SubArray sa = dataItem.data();
             byte[] data = new byte[sa.end - sa.start - OF_DATA];
             System.arraycopy(sa.raw,sa.start + OF_DATA,data,0,data.length);
@@ -48,6 +59,53 @@ import java.util.Arrays;
         }
     }
 
+    //在读锁内把记录数据(不含xmin/xmax)交给visitor, 不产生拷贝
+    public <R> R visit(RecordVisitor<R> visitor) throws Exception {
+        dataItem.rLock();
+        try {
+            if (dataItem.isOverflow()){
+                // 溢出记录不在同一段内存中, 只能先拼成完整数据
+                byte[] full = readOverflow();
+                return visitor.visit(full, OF_DATA, full.length);
+            }
+            SubArray sa = dataItem.data();
+            return visitor.visit(sa.raw, sa.start + OF_DATA, sa.end);
+        }finally {
+            dataItem.rUnLock();
+        }
+    }
+
+    //流式读取记录数据(不含xmin/xmax), 溢出部分按需逐页读取; 页内前缀在调用时拷贝
+    public InputStream openStream() throws IOException {
+        dataItem.rLock();
+        InputStream in;
+        try {
+            in = dataItem.openStream();
+        } finally {
+            dataItem.rUnLock();
+        }
+        long skipped = 0;
+        while (skipped < OF_DATA) {
+            long n = in.skip(OF_DATA - skipped);
+            if (n <= 0) {
+                throw new IOException("truncated entry");
+            }
+            skipped += n;
+        }
+        return in;
+    }
+
+    //调用者需持有读锁
+    private byte[] readOverflow() {
+        byte[] full = new byte[dataItem.dataLength()];
+        try (DataInputStream in = new DataInputStream(dataItem.openStream())) {
+            in.readFully(full);
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        return full;
+    }
+
     public void setXmax(long xid){
         dataItem.before();
         try {
@@ -66,7 +124,7 @@ import java.util.Arrays;
         dataItem.rLock();
         try {
             SubArray sa = dataItem.data();
-            return Parser.parseLong(Arrays.copyOfRange(sa.raw, sa.start+OF_XMIN, sa.start+OF_XMAX));
+            return Parser.parseLong(sa.raw, sa.start + OF_XMIN);
         } finally {
             dataItem.rUnLock();
         }
@@ -76,11 +134,16 @@ import java.util.Arrays;
         dataItem.rLock();
         try {
             SubArray sa = dataItem.data();
-            return Parser.parseLong(Arrays.copyOfRange(sa.raw, sa.start+OF_XMAX, sa.start+OF_DATA));
+            return Parser.parseLong(sa.raw, sa.start + OF_XMAX);
         } finally {
             dataItem.rUnLock();
         }
     }
+    //记录是否仍有效, 被释放后置为无效
+    public boolean isValid() {
+        return ((DataItemImpl) dataItem).isValid();
+    }
+
     public void release() {
         ((VersionManagerImpl)vm).releaseEntry(this);
     }
@@ -0,0 +1,10 @@
+package com.ggking.mydb.backend.vm;
+
+/**
+ * 零拷贝读取记录: raw[start, end)直接是缓存页面中的记录数据, 只在visit期间有效,
+ * 实现不得修改或保存raw的引用, 需要保留的内容自行拷贝
+ */
+@FunctionalInterface
+public interface RecordVisitor<R> {
+    R visit(byte[] raw, int start, int end) throws Exception;
+}
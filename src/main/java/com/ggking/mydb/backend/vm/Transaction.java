@@ -2,7 +2,9 @@ package com.ggking.mydb.backend.vm;
 
 import com.ggking.mydb.backend.tm.TransactionManagerImpl;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 public class Transaction {
@@ -12,6 +14,9 @@ public class Transaction {
     public Map<Long,Boolean> snapshot;
     public Exception err;
     public boolean autoAborted;
+    //本事务插入与删除的记录, 回滚/提交后用于释放空间
+    public List<Long> inserted = new ArrayList<>();
+    public List<Long> deleted = new ArrayList<>();
 
     public static Transaction newTransaction(long xid,int level,Map<Long,Transaction> active){
         Transaction t = new Transaction();
@@ -3,14 +3,24 @@ package com.ggking.mydb.backend.vm;
 import com.ggking.mydb.backend.dm.DataManager;
 import com.ggking.mydb.backend.tm.TransactionManager;
 
+import java.io.InputStream;
+import java.util.List;
+
 public interface VersionManager {
     byte[] read(long xid, long uid) throws Exception;
+    //零拷贝读取: 记录可见时把页面中的记录数据交给visitor并返回其结果, 不可见或不存在时返回null
+    <R> R read(long xid, long uid, RecordVisitor<R> visitor) throws Exception;
+    //流式读取: 记录可见时返回其数据流, 超过一页的记录按需读取溢出页; 流关闭前记录保持被引用
+    InputStream readStream(long xid, long uid) throws Exception;
     long insert(long xid, byte[] data) throws Exception;
+    long[] insertBatch(long xid, List<byte[]> datas) throws Exception;
     boolean delete(long xid, long uid) throws Exception;
 
     long begin(int level);
     void commit(long xid) throws Exception;
     void abort(long xid);
+    //释放清理队列中尚未释放的记录; 只在之后不会再有事务提交时调用(仍在进行的事务随进程结束, 恢复时回滚)
+    void close();
 
     public static VersionManager newVersionManager(TransactionManager tm, DataManager dm) {
         return new VersionManagerImpl(tm, dm);
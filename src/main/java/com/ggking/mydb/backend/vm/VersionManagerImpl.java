@@ -2,12 +2,22 @@ package com.ggking.mydb.backend.vm;
 
 
 import com.ggking.mydb.backend.common.AbstractCache;
+import com.ggking.mydb.backend.common.MemoryBudget;
 import com.ggking.mydb.backend.dm.DataManager;
 import com.ggking.mydb.backend.tm.TransactionManager;
+import com.ggking.mydb.backend.tm.TransactionManagerImpl;
 import com.ggking.mydb.backend.utils.Panic;
 import com.ggking.mydb.common.Error;
 
+import java.util.ArrayList;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
@@ -15,24 +25,48 @@ import java.util.concurrent.locks.ReentrantLock;
 
 public class VersionManagerImpl extends AbstractCache<Entry> implements VersionManager{
 
+    //Entry对象的大致开销, 其数据已经由DataItem与页面计入
+    private static final int ENTRY_OVERHEAD = 64;
+
     TransactionManager tm;
     DataManager dm;
     Map<Long, Transaction> activeTransaction;
     Lock lock;
     LockTable lt;
+    //已提交删除、等待释放的记录 [xmax, uid], 按提交顺序排列
+    private Deque<long[]> purgeQueue;
 
     public VersionManagerImpl(TransactionManager tm, DataManager dm){
-        super(0);
+        // Entry释放后继续驻留, 由内存预算淘汰
+        super(BUDGET_BOUND);
         this.tm = tm;
     this.dm = dm;
     activeTransaction = new HashMap<>();
     lock = new ReentrantLock();
     lt = new LockTable();
+    purgeQueue = new ArrayDeque<>();
+    joinBudget(dm.getMemoryBudget(), MemoryBudget.RANK_ENTRY);
+    }
+
+    @Override
+    protected long weigh(Entry entry) {
+        return ENTRY_OVERHEAD;
+    }
+
+    //记录已被释放, 不再驻留, 否则Entry持有的DataItem引用会推迟溢出页链的回收与页内整理
+    @Override
+    protected boolean isStale(Entry entry) {
+        return !entry.isValid();
     }
 
 
     @Override
     public byte[] read(long xid, long uid) throws Exception {
+        return read(xid, uid, (raw, start, end) -> Arrays.copyOfRange(raw, start, end));
+    }
+
+    @Override
+    public <R> R read(long xid, long uid, RecordVisitor<R> visitor) throws Exception {
         lock.lock();
         Transaction t = activeTransaction.get(xid);
         lock.unlock();
@@ -51,13 +85,57 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
             if (!Visibility.isVisible(tm,t,entry)){
                 return null;
             }else {
-                return entry.data();
+                return entry.visit(visitor);
             }
         }finally {
             entry.release();
         }
     }
 
+    @Override
+    public InputStream readStream(long xid, long uid) throws Exception {
+        lock.lock();
+        Transaction t = activeTransaction.get(xid);
+        lock.unlock();
+        if (t.err != null){throw t.err;}
+        Entry entry = null;
+        try{
+            entry = super.get(uid);
+        }catch (Exception e){
+            if (e == Error.NullEntryException){
+                return null;
+            }else {
+                throw  e;
+            }
+        }
+        InputStream in = null;
+        try {
+            if (Visibility.isVisible(tm,t,entry)){
+                in = entry.openStream();
+            }
+        }finally {
+            if (in == null){
+                entry.release();
+            }
+        }
+        if (in == null){
+            return null;
+        }
+        Entry held = entry;
+        return new FilterInputStream(in) {
+            private boolean closed;
+
+            @Override
+            public void close() throws IOException {
+                if (!closed){
+                    closed = true;
+                    super.close();
+                    held.release();
+                }
+            }
+        };
+    }
+
     @Override
     public long insert(long xid, byte[] data) throws Exception {
 
@@ -69,7 +147,29 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
         }
 
         byte[] raw = Entry.wrapEntryRaw(xid, data);
-        return dm.insert(xid,raw);
+        long uid = dm.insert(xid,raw);
+        t.inserted.add(uid);
+        return uid;
+    }
+
+    @Override
+    public long[] insertBatch(long xid, List<byte[]> datas) throws Exception {
+        lock.lock();
+        Transaction t = activeTransaction.get(xid);
+        lock.unlock();
+        if (t.err != null){
+            throw t.err;
+        }
+
+        List<byte[]> raws = new ArrayList<>(datas.size());
+        for (byte[] data : datas) {
+            raws.add(Entry.wrapEntryRaw(xid, data));
+        }
+        long[] uids = dm.insertBatch(xid, raws);
+        for (long uid : uids) {
+            t.inserted.add(uid);
+        }
+        return uids;
     }
 
     @Override
@@ -116,6 +216,7 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
                 throw t.err;
             }
             entry.setXmax(xid);
+            t.deleted.add(uid);
             return true;
         }finally {
         entry.release();}
@@ -154,6 +255,79 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
         lock.unlock();
         lt.remove(xid);
         tm.commit(xid);
+        purge(t);
+    }
+
+    /**
+     * 提交后把删除的记录排入队列, 再释放队首所有已不可能被任何活跃事务看到的记录
+     * 判断在锁内进行, 释放(写日志、整理页面)在锁外进行
+     */
+    private void purge(Transaction t) throws Exception {
+        List<Long> freed = new ArrayList<>();
+        lock.lock();
+        try {
+            for (long uid : t.deleted) {
+                purgeQueue.addLast(new long[]{t.xid, uid});
+            }
+            while (!purgeQueue.isEmpty() && canPurge(purgeQueue.peekFirst()[0])) {
+                freed.add(purgeQueue.pollFirst()[1]);
+            }
+        } finally {
+            lock.unlock();
+        }
+        for (long uid : freed) {
+            free(uid);
+        }
+    }
+
+    /**
+     * 释放前先淘汰驻留的Entry, 让DataManager持有唯一的DataItem引用, 溢出页链可以立即回收;
+     * 释放期间被重新加载、又已归还的Entry在释放后淘汰, 仍被引用的由最后一次release丢弃
+     */
+    private void free(long uid) throws Exception {
+        evictIdle(uid);
+        try {
+            dm.free(TransactionManagerImpl.SUPER_XID, uid);
+        } finally {
+            evictIdle(uid);
+        }
+    }
+
+    /**
+     * 关闭之后不会再有事务提交, 仍在进行的事务随进程结束、恢复时回滚, 队列中的记录对之后的任何事务都不可见, 全部释放;
+     * 否则这些记录的空间不会再被回收
+     */
+    @Override
+    public void close() {
+        List<Long> freed = new ArrayList<>();
+        lock.lock();
+        try {
+            while (!purgeQueue.isEmpty()) {
+                freed.add(purgeQueue.pollFirst()[1]);
+            }
+        } finally {
+            lock.unlock();
+        }
+        for (long uid : freed) {
+            try {
+                free(uid);
+            } catch (Exception e) {
+                Panic.panic(e);
+            }
+        }
+    }
+
+    /**
+     * xmax已提交; 读已提交的事务此后都看不到该版本, 可重复读的事务只有在
+     * xmax晚于自己开始或在自己的快照中时才仍能看到它
+     */
+    private boolean canPurge(long xmax) {
+        for (Transaction t : activeTransaction.values()) {
+            if (t.level != 0 && (t.xid < xmax || t.idInSnapdhot(xmax))) {
+                return false;
+            }
+        }
+        return true;
     }
 
     @Override
@@ -171,6 +345,14 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
         if (t.autoAborted) return;
         lt.remove(xid);
         tm.abort(xid);
+        // 回滚事务插入的记录不会再被任何事务看到, 直接释放
+        for (long uid : t.inserted) {
+            try {
+                free(uid);
+            } catch (Exception e) {
+                Panic.panic(e);
+            }
+        }
     }
 
     @Override
@@ -12,6 +12,13 @@ public class Error {
     public static final Exception MemTooSmallException = new RuntimeException("Memory too small!");
     public static final Exception DataTooLargeException = new RuntimeException("Data too large!");
     public static final Exception DatabaseBusyException = new RuntimeException("Database is busy!");
+    public static final Exception InvalidPolicyException = new RuntimeException("Invalid page replacement policy!");
+    public static final Exception InvalidPageSizeException = new RuntimeException("Invalid page size!");
+    public static final Exception UnsupportedPageFormatException = new RuntimeException("Unsupported page format!");
+    public static final Exception CorruptedPageException = new RuntimeException("Corrupted compressed page!");
+    public static final Exception InvalidSegmentSizeException = new RuntimeException("Invalid segment size!");
+    public static final Exception PageNumberOverflowException = new RuntimeException("Page number overflow!");
+    public static final Exception MmapSegmentedException = new RuntimeException("Segmented data files cannot be memory mapped!");
 
     // tm
     public static final Exception BadXIDFileException = new RuntimeException("Bad XID file!");
@@ -43,4 +50,5 @@ public class Error {
 
     // launcher
     public static final Exception InvalidMemException = new RuntimeException("Invalid memory!");
+    public static final Exception InvalidReadAheadException = new RuntimeException("Invalid read-ahead page count!");
 }
@@ -0,0 +1,344 @@
+package com.ggking.mydb.backend.dm;
+
+import com.ggking.mydb.backend.dm.dataItem.DataItem;
+import com.ggking.mydb.backend.dm.dataItem.DataItemImpl;
+import com.ggking.mydb.backend.dm.page.Page;
+import com.ggking.mydb.backend.dm.page.PageOverflow;
+import com.ggking.mydb.backend.dm.page.PageSlotted;
+import com.ggking.mydb.backend.dm.page.PageX;
+import com.ggking.mydb.backend.dm.pageCache.PageCache;
+import com.ggking.mydb.backend.tm.TransactionManagerImpl;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class CompactionTest {
+
+    private static final long SUPER_XID = TransactionManagerImpl.SUPER_XID;
+
+    private Path dir;
+    private DataManagerOptions options;
+    private MemoryLogger logger;
+    private MockTransactionManager tm;
+    private DataManagerImpl dm;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("compact");
+        create("slotted");
+    }
+
+    private void create(String format) {
+        options = new DataManagerOptions();
+        options.format = format;
+        logger = new MemoryLogger();
+        tm = new MockTransactionManager();
+        PageCache pc = PageCache.create(path(), 1 << 22, options);
+        dm = new DataManagerImpl(pc, logger, tm, options);
+        dm.initPageOne();
+    }
+
+    //关闭当前数据库, 以另一种数据页格式重新创建
+    private void recreate(String format) throws IOException {
+        dm.close();
+        for (File f : dir.toFile().listFiles()) {
+            Files.delete(f.toPath());
+        }
+        create(format);
+    }
+
+    private String path() {
+        return dir.resolve("test").toString();
+    }
+
+    //不关闭DataManager(页一仍标记为未正常关闭), 页面写回后按DataManager.open的流程重新打开并恢复
+    private void crashAndReopen() {
+        dm.pc.close();
+        PageCache pc = PageCache.open(path(), 1 << 22, options);
+        dm = new DataManagerImpl(pc, logger, tm, options);
+        assertFalse(dm.loadCheckPageOne());
+        Recover.recover(tm, logger, pc, dm.slotted);
+        dm.fillPageIndex();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        dm.close();
+        for (File f : dir.toFile().listFiles()) {
+            Files.delete(f.toPath());
+        }
+        Files.delete(dir);
+    }
+
+    static byte[] record(int i, int length) {
+        byte[] data = new byte[length];
+        for (int j = 0; j < length; j++) {
+            data[j] = (byte) (i * 31 + j);
+        }
+        return data;
+    }
+
+    static byte[] readAll(DataManager dm, long uid) throws Exception {
+        DataItem di = dm.read(uid);
+        if (di == null) {
+            return null;
+        }
+        try {
+            byte[] data = new byte[di.dataLength()];
+            int n = 0;
+            try (InputStream in = di.openStream()) {
+                int r;
+                while (n < data.length && (r = in.read(data, n, data.length - n)) > 0) {
+                    n += r;
+                }
+            }
+            return Arrays.copyOf(data, n);
+        } finally {
+            di.release();
+        }
+    }
+
+    private boolean isOverflowPage(int pgno) throws Exception {
+        Page pg = dm.pc.getPage(pgno);
+        try {
+            return PageOverflow.isOverflow(pg);
+        } finally {
+            pg.release();
+        }
+    }
+
+    private int slotCount(int pgno) throws Exception {
+        Page pg = dm.pc.getPage(pgno);
+        try {
+            return PageSlotted.getSlotCount(pg);
+        } finally {
+            pg.release();
+        }
+    }
+
+    private int freeSpace(int pgno) throws Exception {
+        Page pg = dm.pc.getPage(pgno);
+        try {
+            return PageSlotted.getFreeSpace(pg);
+        } finally {
+            pg.release();
+        }
+    }
+
+    //释放大部分记录后页面被整理, 剩余记录内容不变, 腾出的空间可以再次使用
+    @Test
+    public void testCompactKeepsLiveRecords() throws Exception {
+        List<Long> uids = new ArrayList<>();
+        for (int i = 0; i < 60; i++) {
+            uids.add(dm.insert(SUPER_XID, record(i, 100)));
+        }
+        int pgno = (int) (uids.get(0) >>> 32);
+        int before = freeSpace(pgno);
+        for (int i = 0; i < 60; i++) {
+            if (i % 5 != 0) {
+                dm.free(SUPER_XID, uids.get(i));
+            }
+        }
+        assertTrue(freeSpace(pgno) > before);
+        for (int i = 0; i < 60; i++) {
+            if (i % 5 == 0) {
+                assertArrayEquals(record(i, 100), readAll(dm, uids.get(i)));
+            } else {
+                assertNull(readAll(dm, uids.get(i)));
+            }
+        }
+        long uid = dm.insert(SUPER_XID, record(100, 100));
+        assertArrayEquals(record(100, 100), readAll(dm, uid));
+        assertArrayEquals(record(0, 100), readAll(dm, uids.get(0)));
+    }
+
+    //旧格式页面整理为墓碑与空闲区, 剩余记录原地不动, 空闲区可以放入新记录
+    @Test
+    public void testLegacyCompactKeepsLiveRecords() throws Exception {
+        recreate("legacy");
+        assertFalse(dm.slotted);
+        List<Long> uids = new ArrayList<>();
+        for (int i = 0; i < 60; i++) {
+            uids.add(dm.insert(SUPER_XID, record(i, 100)));
+        }
+        int pgno = (int) (uids.get(0) >>> 32);
+        for (int i = 0; i < 60; i++) {
+            if (i % 5 != 0) {
+                dm.free(SUPER_XID, uids.get(i));
+            }
+        }
+        Page pg = dm.pc.getPage(pgno);
+        try {
+            // 每条失效记录留下墓碑, 空闲区不跨过墓碑合并, 只能放下比原记录小的记录
+            assertTrue(PageX.findFiller(pg, 43) >= 0);
+        } finally {
+            pg.release();
+        }
+        for (int i = 0; i < 60; i++) {
+            if (i % 5 == 0) {
+                assertArrayEquals(record(i, 100), readAll(dm, uids.get(i)));
+            } else {
+                assertNull(readAll(dm, uids.get(i)));
+            }
+        }
+        long uid = dm.insert(SUPER_XID, record(100, 40));
+        assertEquals(pgno, uid >>> 32);
+        assertArrayEquals(record(100, 40), readAll(dm, uid));
+    }
+
+    //整理后空槽被新记录复用, 旧uid读到的仍是空槽
+    @Test
+    public void testStaleUidAfterSlotReuse() throws Exception {
+        List<Long> uids = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            uids.add(dm.insert(SUPER_XID, record(i, 100)));
+        }
+        for (int i = 0; i < 15; i++) {
+            dm.free(SUPER_XID, uids.get(i));
+        }
+        int pgno = (int) (uids.get(0) >>> 32);
+        int slots = slotCount(pgno);
+        List<Long> reused = new ArrayList<>();
+        for (int i = 0; i < 15; i++) {
+            long uid = dm.insert(SUPER_XID, record(100 + i, 100));
+            reused.add(uid);
+        }
+        // 最后几次释放未达到整理的比例, 只有已整理掉的槽被复用
+        assertTrue(slotCount(pgno) < slots + 15);
+        for (int i = 0; i < 15; i++) {
+            assertNull(readAll(dm, uids.get(i)));
+            assertArrayEquals(record(100 + i, 100), readAll(dm, reused.get(i)));
+        }
+        for (int i = 15; i < 20; i++) {
+            assertArrayEquals(record(i, 100), readAll(dm, uids.get(i)));
+        }
+    }
+
+    //页面已写回(比日志新)时重做插入、整理与复用槽的插入, 结果与崩溃前一致
+    @Test
+    public void testRecoverAfterSlotReuse() throws Exception {
+        List<Long> uids = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            uids.add(dm.insert(SUPER_XID, record(i, 100)));
+        }
+        for (int i = 0; i < 15; i++) {
+            dm.free(SUPER_XID, uids.get(i));
+        }
+        List<Long> reused = new ArrayList<>();
+        for (int i = 0; i < 15; i++) {
+            reused.add(dm.insert(SUPER_XID, record(100 + i, 100)));
+        }
+
+        crashAndReopen();
+        for (int i = 0; i < 15; i++) {
+            assertNull(readAll(dm, uids.get(i)));
+            assertArrayEquals(record(100 + i, 100), readAll(dm, reused.get(i)));
+        }
+        for (int i = 15; i < 20; i++) {
+            assertArrayEquals(record(i, 100), readAll(dm, uids.get(i)));
+        }
+    }
+
+    //页中有记录正被引用时仍然整理, 被引用的记录留在原处, 读者看到的内容不变
+    @Test
+    public void testCompactWithPinnedRecord() throws Exception {
+        List<Long> uids = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            uids.add(dm.insert(SUPER_XID, record(i, 100)));
+        }
+        int pgno = (int) (uids.get(0) >>> 32);
+        int before = freeSpace(pgno);
+        DataItem pinned = dm.read(uids.get(20));
+        try {
+            for (int i = 0; i < 40; i++) {
+                if (i % 4 != 0) {
+                    dm.free(SUPER_XID, uids.get(i));
+                }
+            }
+            assertTrue(freeSpace(pgno) > before);
+            assertArrayEquals(record(20, 100), Arrays.copyOfRange(pinned.data().raw, pinned.data().start, pinned.data().end));
+        } finally {
+            pinned.release();
+        }
+        for (int i = 0; i < 40; i += 4) {
+            assertArrayEquals(record(i, 100), readAll(dm, uids.get(i)));
+        }
+    }
+
+    //没有读者时释放溢出记录立即回收溢出页链
+    @Test
+    public void testFreeOverflowChain() throws Exception {
+        byte[] big = record(1, 30000);
+        long uid = dm.insert(SUPER_XID, big);
+        assertArrayEquals(big, readAll(dm, uid));
+        int first = firstOverflowPage(uid);
+        assertTrue(isOverflowPage(first));
+        dm.free(SUPER_XID, uid);
+        assertFalse(isOverflowPage(first));
+        assertNull(readAll(dm, uid));
+    }
+
+    //释放时仍有读者, 溢出页链保留到之后的整理再回收, 读者读到的数据完整
+    @Test
+    public void testOverflowChainKeptWhileRead() throws Exception {
+        long small = dm.insert(SUPER_XID, record(0, 100));
+        byte[] big = record(1, 30000);
+        long uid = dm.insert(SUPER_XID, big);
+        assertEquals(small >>> 32, uid >>> 32);
+        int first = firstOverflowPage(uid);
+
+        DataItem reader = dm.read(uid);
+        dm.free(SUPER_XID, uid);
+        assertTrue(isOverflowPage(first));
+        try (InputStream in = reader.openStream()) {
+            byte[] data = new byte[big.length];
+            int n = 0, r;
+            while (n < data.length && (r = in.read(data, n, data.length - n)) > 0) {
+                n += r;
+            }
+            assertArrayEquals(big, data);
+        } finally {
+            reader.release();
+        }
+
+        // 同一页的下一次释放触发整理, 回收保留下来的溢出页链
+        dm.free(SUPER_XID, small);
+        assertFalse(isOverflowPage(first));
+    }
+
+    //未提交事务插入的溢出记录在恢复时被撤销, 恢复后的扫描回收它的溢出页链
+    @Test
+    public void testAbortedOverflowInsertReclaimedOnRecovery() throws Exception {
+        long committed = dm.insert(SUPER_XID, record(0, 100));
+        long xid = tm.begin();
+        byte[] big = record(1, 30000);
+        long uid = dm.insert(xid, big);
+        int first = firstOverflowPage(uid);
+
+        crashAndReopen();
+        assertNull(readAll(dm, uid));
+        assertFalse(isOverflowPage(first));
+        assertArrayEquals(record(0, 100), readAll(dm, committed));
+    }
+
+    private int firstOverflowPage(long uid) throws Exception {
+        DataItem di = dm.read(uid);
+        try {
+            assertTrue(di.isOverflow());
+            return ((DataItemImpl) di).firstOverflowPage();
+        } finally {
+            di.release();
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package com.ggking.mydb.backend.dm;
+
+import com.ggking.mydb.backend.common.MemoryBudget;
+import com.ggking.mydb.backend.dm.pageCache.PageCache;
+import com.ggking.mydb.backend.tm.TransactionManagerImpl;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class DataItemCacheTest {
+
+    private static final long SUPER_XID = TransactionManagerImpl.SUPER_XID;
+    //只够放下16个页面的缓冲池
+    private static final long MEMORY = 16 * 8192;
+
+    private Path dir;
+    private DataManagerImpl dm;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("dicache");
+        DataManagerOptions options = new DataManagerOptions();
+        PageCache pc = PageCache.create(dir.resolve("test").toString(), MEMORY, options);
+        dm = new DataManagerImpl(pc, new MemoryLogger(), new MockTransactionManager(), options);
+        dm.initPageOne();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        dm.close();
+        for (File f : dir.toFile().listFiles()) {
+            Files.delete(f.toPath());
+        }
+        Files.delete(dir);
+    }
+
+    private int residentDataItems() {
+        for (String line : dm.status().split("\n")) {
+            if (line.startsWith("dataitem_resident: ")) {
+                return Integer.parseInt(line.substring("dataitem_resident: ".length()));
+            }
+        }
+        throw new AssertionError("no dataitem_resident in status");
+    }
+
+    //驻留的DataItem钉住所在页面, 记录分布在远多于缓冲池的页面上时, 仍能由预算淘汰DataItem腾出页框
+    @Test
+    public void testResidentDataItemsEvictedUnderBudget() throws Exception {
+        List<Long> uids = new ArrayList<>();
+        for (int i = 0; i < 400; i++) {
+            uids.add(dm.insert(SUPER_XID, CompactionTest.record(i, 1000)));
+        }
+        for (int round = 0; round < 2; round++) {
+            for (int i = 0; i < uids.size(); i++) {
+                assertArrayEquals(CompactionTest.record(i, 1000), CompactionTest.readAll(dm, uids.get(i)));
+            }
+        }
+        // 后台写回钉住的页面(最多缓冲池的四分之一)不能淘汰, 预算可能暂时超出这么多
+        MemoryBudget budget = dm.getMemoryBudget();
+        assertTrue(budget.getUsed() <= budget.getLimit() + MEMORY / 4);
+        // 预算先淘汰DataItem再淘汰页面, 之后的预读也可能把驻留的DataItem全部挤掉, 这里只检查它们没有无限增长
+        assertTrue(residentDataItems() < uids.size());
+    }
+
+    //读过的记录释放后继续驻留, 再次读取命中缓存; 失效记录归还后不驻留
+    @Test
+    public void testInvalidDataItemNotRetained() throws Exception {
+        long a = dm.insert(SUPER_XID, CompactionTest.record(1, 100));
+        long b = dm.insert(SUPER_XID, CompactionTest.record(2, 100));
+        CompactionTest.readAll(dm, a);
+        CompactionTest.readAll(dm, b);
+        assertEquals(2, residentDataItems());
+        dm.free(SUPER_XID, b);
+        assertEquals(1, residentDataItems());
+        assertNull(CompactionTest.readAll(dm, b));
+        assertEquals(1, residentDataItems());
+        assertArrayEquals(CompactionTest.record(1, 100), CompactionTest.readAll(dm, a));
+    }
+}
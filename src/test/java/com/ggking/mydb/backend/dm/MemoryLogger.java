@@ -0,0 +1,44 @@
+package com.ggking.mydb.backend.dm;
+
+import com.ggking.mydb.backend.dm.logger.Logger;
+
+import java.util.ArrayList;
+import java.util.List;
+
+//日志只保存在内存中, 同一个对象交给重新打开的DataManager即可模拟崩溃后的恢复
+class MemoryLogger implements Logger {
+
+    private final List<byte[]> logs = new ArrayList<>();
+    private int position;
+
+    @Override
+    public synchronized void log(byte[] data) {
+        logs.add(data.clone());
+    }
+
+    //最近写出的一条日志
+    synchronized byte[] last() {
+        return logs.get(logs.size() - 1).clone();
+    }
+
+    @Override
+    public void truncate(long x) {
+    }
+
+    @Override
+    public synchronized byte[] next() {
+        if (position >= logs.size()) {
+            return null;
+        }
+        return logs.get(position++).clone();
+    }
+
+    @Override
+    public synchronized void rewind() {
+        position = 0;
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,52 @@
+package com.ggking.mydb.backend.dm;
+
+import com.ggking.mydb.backend.tm.TransactionManager;
+import com.ggking.mydb.backend.tm.TransactionManagerImpl;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+//事务状态只保存在内存中; 未提交也未回滚的事务在恢复时视为活跃, 其日志被撤销
+class MockTransactionManager implements TransactionManager {
+
+    private long xidCounter = TransactionManagerImpl.SUPER_XID;
+    private final Set<Long> active = ConcurrentHashMap.newKeySet();
+    private final Set<Long> aborted = ConcurrentHashMap.newKeySet();
+
+    @Override
+    public synchronized long begin() {
+        long xid = ++xidCounter;
+        active.add(xid);
+        return xid;
+    }
+
+    @Override
+    public void commit(long xid) {
+        active.remove(xid);
+    }
+
+    @Override
+    public void abort(long xid) {
+        active.remove(xid);
+        aborted.add(xid);
+    }
+
+    @Override
+    public boolean isActive(long xid) {
+        return active.contains(xid);
+    }
+
+    @Override
+    public boolean isCommitted(long xid) {
+        return !active.contains(xid) && !aborted.contains(xid);
+    }
+
+    @Override
+    public boolean isAborted(long xid) {
+        return aborted.contains(xid);
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,133 @@
+package com.ggking.mydb.backend.dm;
+
+import com.ggking.mydb.backend.dm.dataItem.DataItem;
+import com.ggking.mydb.backend.dm.page.PageSlotted;
+import com.ggking.mydb.backend.dm.page.PageX;
+import com.ggking.mydb.backend.dm.pageCache.PageCache;
+import com.ggking.mydb.backend.tm.TransactionManagerImpl;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static com.ggking.mydb.backend.dm.CompactionTest.readAll;
+import static com.ggking.mydb.backend.dm.CompactionTest.record;
+import static org.junit.Assert.*;
+
+//一页放不下的记录写成溢出记录: 页内前缀加溢出页链, 读出的完整数据与写入的一致
+public class OverflowTest {
+
+    private static final long SUPER_XID = TransactionManagerImpl.SUPER_XID;
+
+    private Path dir;
+    private DataManagerImpl dm;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("overflow");
+        create("slotted");
+    }
+
+    private void create(String format) {
+        DataManagerOptions options = new DataManagerOptions();
+        options.format = format;
+        PageCache pc = PageCache.create(dir.resolve("test").toString(), 1 << 22, options);
+        dm = new DataManagerImpl(pc, new MemoryLogger(), new MockTransactionManager(), options);
+        dm.initPageOne();
+    }
+
+    //关闭当前数据库, 以另一种数据页格式重新创建
+    private void recreate(String format) throws IOException {
+        dm.close();
+        for (File f : dir.toFile().listFiles()) {
+            Files.delete(f.toPath());
+        }
+        create(format);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        dm.close();
+        for (File f : dir.toFile().listFiles()) {
+            Files.delete(f.toPath());
+        }
+        Files.delete(dir);
+    }
+
+    //页内能放下的最大数据长度(去掉DataItem头)
+    private int maxInPage() {
+        int pageSize = dm.pc.getPageSize();
+        return (dm.slotted ? PageSlotted.maxFreeSpace(pageSize) : PageX.maxFreeSpace(pageSize)) - 3;
+    }
+
+    private boolean isOverflow(long uid) throws Exception {
+        DataItem di = dm.read(uid);
+        try {
+            return di.isOverflow();
+        } finally {
+            di.release();
+        }
+    }
+
+    private void checkSizes() throws Exception {
+        int max = maxInPage();
+        int pageSize = dm.pc.getPageSize();
+        int[] sizes = {max, max + 1, 3 * pageSize, 100_000};
+        for (int i = 0; i < sizes.length; i++) {
+            byte[] data = record(i, sizes[i]);
+            long uid = dm.insert(SUPER_XID, data);
+            assertTrue(isOverflow(uid) == (sizes[i] > max));
+            assertArrayEquals(data, readAll(dm, uid));
+        }
+    }
+
+    //正好放满一页的记录留在页内, 多一个字节即写成溢出记录, 跨多个溢出页的记录完整读出
+    @Test
+    public void testRoundTrip() throws Exception {
+        checkSizes();
+    }
+
+    @Test
+    public void testLegacyRoundTrip() throws Exception {
+        recreate("legacy");
+        checkSizes();
+    }
+
+    //溢出记录的DataItem只含页内前缀, dataLength给出完整长度
+    @Test
+    public void testPrefixAndLength() throws Exception {
+        byte[] data = record(1, 30000);
+        long uid = dm.insert(SUPER_XID, data);
+        DataItem di = dm.read(uid);
+        try {
+            assertTrue(di.isOverflow());
+            assertEquals(data.length, di.dataLength());
+            byte[] prefix = Arrays.copyOfRange(di.data().raw, di.data().start, di.data().end);
+            assertTrue(prefix.length < data.length);
+            assertArrayEquals(Arrays.copyOf(data, prefix.length), prefix);
+        } finally {
+            di.release();
+        }
+    }
+
+    //批量插入中大小混合的记录逐条放置, 返回的uid与数据一一对应
+    @Test
+    public void testBatchWithOverflow() throws Exception {
+        List<byte[]> datas = new ArrayList<>();
+        for (int i = 0; i < 12; i++) {
+            datas.add(record(i, i % 3 == 0 ? 20000 + i : 100 + i));
+        }
+        long[] uids = dm.insertBatch(SUPER_XID, datas);
+        for (int i = 0; i < uids.length; i++) {
+            assertTrue(isOverflow(uids[i]) == (i % 3 == 0));
+            assertArrayEquals(datas.get(i), readAll(dm, uids[i]));
+        }
+    }
+}
@@ -0,0 +1,451 @@
+package com.ggking.mydb.backend.dm;
+
+import com.ggking.mydb.backend.common.SubArray;
+import com.ggking.mydb.backend.dm.dataItem.DataItem;
+import com.ggking.mydb.backend.dm.dataItem.DataItemImpl;
+import com.ggking.mydb.backend.dm.page.Page;
+import com.ggking.mydb.backend.dm.page.PageFsm;
+import com.ggking.mydb.backend.dm.page.PageOne;
+import com.ggking.mydb.backend.dm.page.PageOverflow;
+import com.ggking.mydb.backend.dm.page.PageSlotted;
+import com.ggking.mydb.backend.dm.page.PageX;
+import com.ggking.mydb.backend.dm.pageCache.PageCache;
+import com.ggking.mydb.backend.dm.pageIndex.PageIndex;
+import com.ggking.mydb.backend.tm.TransactionManagerImpl;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.ggking.mydb.backend.dm.CompactionTest.readAll;
+import static com.ggking.mydb.backend.dm.CompactionTest.record;
+import static org.junit.Assert.*;
+
+//各类日志的重做与撤销: 页面比日志旧时重做到最新, 未提交事务的修改被撤销
+public class RecoverTest {
+
+    private static final long SUPER_XID = TransactionManagerImpl.SUPER_XID;
+    private static final byte LOG_TYPE_INSERT_BATCH = 2;
+    private static final byte LOG_TYPE_UPDATE_DELTA = 3;
+    private static final byte LOG_TYPE_SLOT_INSERT = 4;
+
+    private Path dir;
+    private DataManagerOptions options;
+    private MemoryLogger logger;
+    private MockTransactionManager tm;
+    private DataManagerImpl dm;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("recover");
+        create("slotted");
+    }
+
+    private void create(String format) {
+        options = new DataManagerOptions();
+        options.format = format;
+        logger = new MemoryLogger();
+        tm = new MockTransactionManager();
+        PageCache pc = PageCache.create(path(), 1 << 22, options);
+        dm = new DataManagerImpl(pc, logger, tm, options);
+        dm.initPageOne();
+    }
+
+    //关闭当前数据库, 以另一种数据页格式重新创建
+    private void recreate(String format) throws IOException {
+        dm.close();
+        for (File f : dir.toFile().listFiles()) {
+            Files.delete(f.toPath());
+        }
+        create(format);
+    }
+
+    private String path() {
+        return dir.resolve("test").toString();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        dm.close();
+        for (File f : dir.toFile().listFiles()) {
+            Files.delete(f.toPath());
+        }
+        Files.delete(dir);
+    }
+
+    private byte[] snapshot(int pgno) throws Exception {
+        Page pg = dm.pc.getPage(pgno);
+        try {
+            return pg.getData().clone();
+        } finally {
+            pg.release();
+        }
+    }
+
+    /**
+     * 不关闭DataManager, 页面写回后把stale中的页面改回较早的镜像(模拟它们之后的修改崩溃前未写回),
+     * 再按DataManager.open的流程重新打开并恢复
+     */
+    private void crash(Map<Integer, byte[]> stale) throws Exception {
+        dm.pc.close();
+        PageCache pc = PageCache.open(path(), 1 << 22, options);
+        for (Map.Entry<Integer, byte[]> e : stale.entrySet()) {
+            Page pg = pc.getPage(e.getKey());
+            PageX.recoverUpdate(pg, e.getValue(), 0);
+            pg.release();
+        }
+        pc.close();
+        pc = PageCache.open(path(), 1 << 22, options);
+        dm = new DataManagerImpl(pc, logger, tm, options);
+        assertFalse(dm.loadCheckPageOne());
+        Recover.recover(tm, logger, pc, dm.slotted);
+        dm.fillPageIndex();
+    }
+
+    private static int pgno(long uid) {
+        return (int) (uid >>> 32);
+    }
+
+    //在记录数据的[from, from + bytes.length)处写入bytes, 写出一条更新日志
+    private void update(long xid, long uid, int from, byte[] bytes) throws Exception {
+        DataItem di = dm.read(uid);
+        try {
+            di.before();
+            SubArray sa = di.data();
+            System.arraycopy(bytes, 0, sa.raw, sa.start + from, bytes.length);
+            di.after(xid);
+        } finally {
+            di.release();
+        }
+    }
+
+    private static byte[] patched(byte[] data, int from, byte[] bytes) {
+        byte[] copy = data.clone();
+        System.arraycopy(bytes, 0, copy, from, bytes.length);
+        return copy;
+    }
+
+    //少量字节的修改写成增量日志, 页面停留在修改之前时重做出修改
+    @Test
+    public void testUpdateDeltaRedo() throws Exception {
+        byte[] data = record(1, 1000);
+        long uid = dm.insert(SUPER_XID, data);
+        byte[] before = snapshot(pgno(uid));
+        long xid = tm.begin();
+        byte[] bytes = {1, 2, 3, 4};
+        update(xid, uid, 500, bytes);
+        byte[] log = logger.last();
+        assertEquals(LOG_TYPE_UPDATE_DELTA, log[0]);
+        assertTrue(log.length < 100);
+        tm.commit(xid);
+
+        crash(Collections.singletonMap(pgno(uid), before));
+        assertArrayEquals(patched(data, 500, bytes), readAll(dm, uid));
+    }
+
+    //未提交事务的增量修改在恢复时撤销, 页面已写回修改与尚未写回两种情况结果相同
+    @Test
+    public void testUpdateDeltaUndo() throws Exception {
+        byte[] data = record(1, 1000);
+        long a = dm.insert(SUPER_XID, data);
+        long b = dm.insert(SUPER_XID, data);
+        byte[] before = snapshot(pgno(b));
+        long xid = tm.begin();
+        update(xid, a, 10, new byte[]{9, 9});
+        update(xid, a, 900, new byte[]{8, 8, 8});
+        assertEquals(LOG_TYPE_UPDATE_DELTA, logger.last()[0]);
+
+        crash(Collections.emptyMap());
+        assertArrayEquals(data, readAll(dm, a));
+
+        xid = tm.begin();
+        update(xid, b, 10, new byte[]{7});
+        crash(Collections.singletonMap(pgno(b), before));
+        assertArrayEquals(data, readAll(dm, b));
+    }
+
+    private static List<byte[]> records(int from, int n, int length) {
+        List<byte[]> datas = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            datas.add(record(from + i, length));
+        }
+        return datas;
+    }
+
+    //旧格式页面中的批量插入写成一条日志, 页面停留在插入之前时重做出全部记录
+    @Test
+    public void testInsertBatchRedo() throws Exception {
+        recreate("legacy");
+        long first = dm.insert(SUPER_XID, record(0, 100));
+        byte[] before = snapshot(pgno(first));
+        long xid = tm.begin();
+        List<byte[]> datas = records(1, 10, 100);
+        long[] uids = dm.insertBatch(xid, datas);
+        assertEquals(LOG_TYPE_INSERT_BATCH, logger.last()[0]);
+        for (long uid : uids) {
+            assertEquals(pgno(first), pgno(uid));
+        }
+        tm.commit(xid);
+
+        crash(Collections.singletonMap(pgno(first), before));
+        assertArrayEquals(record(0, 100), readAll(dm, first));
+        for (int i = 0; i < uids.length; i++) {
+            assertArrayEquals(datas.get(i), readAll(dm, uids[i]));
+        }
+    }
+
+    //未提交事务的批量插入整批撤销; 页面停留在插入之前时按日志写入失效的记录, 同页中之前的记录不受影响
+    @Test
+    public void testInsertBatchUndo() throws Exception {
+        recreate("legacy");
+        long first = dm.insert(SUPER_XID, record(0, 100));
+        byte[] before = snapshot(pgno(first));
+        long xid = tm.begin();
+        long[] uids = dm.insertBatch(xid, records(1, 10, 100));
+        assertEquals(LOG_TYPE_INSERT_BATCH, logger.last()[0]);
+
+        crash(Collections.singletonMap(pgno(first), before));
+        for (long uid : uids) {
+            assertNull(readAll(dm, uid));
+        }
+        assertArrayEquals(record(0, 100), readAll(dm, first));
+    }
+
+    //带槽目录页面中的单条与批量插入都写成槽插入日志, 页面停留在插入之前时重做出相同的槽与记录
+    @Test
+    public void testSlotInsertRedo() throws Exception {
+        long first = dm.insert(SUPER_XID, record(0, 100));
+        byte[] before = snapshot(pgno(first));
+        long xid = tm.begin();
+        long single = dm.insert(xid, record(1, 100));
+        assertEquals(LOG_TYPE_SLOT_INSERT, logger.last()[0]);
+        List<byte[]> datas = records(2, 10, 100);
+        long[] uids = dm.insertBatch(xid, datas);
+        assertEquals(LOG_TYPE_SLOT_INSERT, logger.last()[0]);
+        tm.commit(xid);
+
+        crash(Collections.singletonMap(pgno(first), before));
+        assertArrayEquals(record(0, 100), readAll(dm, first));
+        assertArrayEquals(record(1, 100), readAll(dm, single));
+        for (int i = 0; i < uids.length; i++) {
+            assertArrayEquals(datas.get(i), readAll(dm, uids[i]));
+        }
+    }
+
+    //未提交事务的槽插入在较早的页面上撤销为失效记录, 槽目录完整, 之后的插入不会与它们冲突
+    @Test
+    public void testSlotInsertUndo() throws Exception {
+        long first = dm.insert(SUPER_XID, record(0, 100));
+        byte[] before = snapshot(pgno(first));
+        long xid = tm.begin();
+        long single = dm.insert(xid, record(1, 100));
+        long[] uids = dm.insertBatch(xid, records(2, 10, 100));
+
+        crash(Collections.singletonMap(pgno(first), before));
+        assertNull(readAll(dm, single));
+        for (long uid : uids) {
+            assertNull(readAll(dm, uid));
+        }
+        assertArrayEquals(record(0, 100), readAll(dm, first));
+        long next = dm.insert(SUPER_XID, record(20, 100));
+        assertArrayEquals(record(20, 100), readAll(dm, next));
+        assertNull(readAll(dm, single));
+    }
+
+    //页面停留在释放之前时, 依次重做失效、整理与复用空槽的插入, 结果与崩溃前一致
+    @Test
+    public void testSlotReuseRedoOnStalePage() throws Exception {
+        List<Long> uids = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            uids.add(dm.insert(SUPER_XID, record(i, 100)));
+        }
+        byte[] before = snapshot(pgno(uids.get(0)));
+        for (int i = 0; i < 15; i++) {
+            dm.free(SUPER_XID, uids.get(i));
+        }
+        List<Long> reused = new ArrayList<>();
+        for (int i = 0; i < 15; i++) {
+            reused.add(dm.insert(SUPER_XID, record(100 + i, 100)));
+        }
+        // 至少有一条新记录复用了空槽, 页内位置中的代数不为0
+        boolean slotReused = false;
+        for (long uid : reused) {
+            slotReused |= (int) uid >>> 16 != 0;
+        }
+        assertTrue(slotReused);
+
+        crash(Collections.singletonMap(pgno(uids.get(0)), before));
+        for (int i = 0; i < 15; i++) {
+            assertNull(readAll(dm, uids.get(i)));
+            assertArrayEquals(record(100 + i, 100), readAll(dm, reused.get(i)));
+        }
+        for (int i = 15; i < 20; i++) {
+            assertArrayEquals(record(i, 100), readAll(dm, uids.get(i)));
+        }
+    }
+
+    //溢出记录的溢出页链, 按链表顺序
+    private List<Integer> overflowChain(long uid) throws Exception {
+        List<Integer> chain = new ArrayList<>();
+        DataItem di = dm.read(uid);
+        int pgno;
+        try {
+            assertTrue(di.isOverflow());
+            pgno = ((DataItemImpl) di).firstOverflowPage();
+        } finally {
+            di.release();
+        }
+        while (pgno != 0) {
+            chain.add(pgno);
+            Page pg = dm.pc.getPage(pgno);
+            try {
+                pgno = PageOverflow.getNext(pg);
+            } finally {
+                pg.release();
+            }
+        }
+        return chain;
+    }
+
+    private boolean isOverflowPage(int pgno) throws Exception {
+        Page pg = dm.pc.getPage(pgno);
+        try {
+            return PageOverflow.isOverflow(pg);
+        } finally {
+            pg.release();
+        }
+    }
+
+    //溢出页以整页镜像写日志, 崩溃前未写回(文件中为全0)时由镜像重做
+    @Test
+    public void testPageImageRedo() throws Exception {
+        byte[] big = record(1, 30000);
+        long uid = dm.insert(SUPER_XID, big);
+        List<Integer> chain = overflowChain(uid);
+        assertTrue(chain.size() > 1);
+
+        Map<Integer, byte[]> stale = new HashMap<>();
+        for (int pgno : chain) {
+            stale.put(pgno, new byte[dm.pc.getPageSize()]);
+        }
+        crash(stale);
+        assertArrayEquals(big, readAll(dm, uid));
+    }
+
+    //回收的溢出页在崩溃时停留在回收之前, 恢复后不再是溢出页, 可以再次使用
+    @Test
+    public void testFreedOverflowPageImageRedo() throws Exception {
+        byte[] big = record(1, 30000);
+        long uid = dm.insert(SUPER_XID, big);
+        List<Integer> chain = overflowChain(uid);
+        Map<Integer, byte[]> stale = new HashMap<>();
+        for (int pgno : chain) {
+            stale.put(pgno, snapshot(pgno));
+        }
+        dm.free(SUPER_XID, uid);
+
+        crash(stale);
+        assertNull(readAll(dm, uid));
+        for (int pgno : chain) {
+            assertFalse(isOverflowPage(pgno));
+        }
+        // 回收的页面可以再次放入记录
+        long next = dm.insert(SUPER_XID, record(2, 5000));
+        assertArrayEquals(record(2, 5000), readAll(dm, next));
+    }
+
+    //正常关闭后按DataManager.open的流程重新打开, 日志沿用同一个对象
+    private void reopen() {
+        dm.close();
+        PageCache pc = PageCache.open(path(), 1 << 22, options);
+        dm = new DataManagerImpl(pc, logger, tm, options);
+        assertTrue(dm.loadCheckPageOne());
+        dm.reconcilePageCount();
+        dm.loadPageIndex();
+    }
+
+    //检查每个数据页在映射中的剩余空间等于页面实际的剩余空间按映射单位向下取整
+    private void checkFsm() throws Exception {
+        int fsmPgno = PageOne.getFsmHead(dm.pageOne);
+        assertTrue(fsmPgno != 0);
+        int unit = PageFsm.unit(dm.pc.getPageSize());
+        Page fsmPage = dm.pc.getPage(fsmPgno);
+        try {
+            assertEquals(1, PageFsm.getBase(fsmPage));
+            for (int pgno = 2; pgno <= dm.pc.getPageNumber(); pgno++) {
+                Page pg = dm.pc.getPage(pgno);
+                try {
+                    if (PageX.isSpecial(pg)) {
+                        continue;
+                    }
+                    int free = dm.slotted ? PageSlotted.getFreeSpace(pg) : PageX.getUsableSpace(pg);
+                    assertEquals(Math.min(0xFF, free / unit) * unit, PageFsm.getFreeSpace(fsmPage, pgno - 1));
+                } finally {
+                    pg.release();
+                }
+            }
+        } finally {
+            fsmPage.release();
+        }
+    }
+
+    private List<Long> fillPages() throws Exception {
+        List<Long> uids = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            uids.add(dm.insert(SUPER_XID, record(i, 1000 + i * 7)));
+        }
+        assertTrue(pgno(uids.get(uids.size() - 1)) > pgno(uids.get(0)) + 2);
+        return uids;
+    }
+
+    //映射页不写日志, 崩溃时停留在较早的内容; 恢复后的全量扫描按数据页重建映射
+    @Test
+    public void testFsmRebuiltAfterCrash() throws Exception {
+        dm.insert(SUPER_XID, record(0, 100));
+        int fsmPgno = PageOne.getFsmHead(dm.pageOne);
+        byte[] staleFsm = snapshot(fsmPgno);
+        List<Long> uids = fillPages();
+
+        crash(Collections.singletonMap(fsmPgno, staleFsm));
+        checkFsm();
+        for (int i = 0; i < uids.size(); i++) {
+            assertArrayEquals(record(i, 1000 + i * 7), readAll(dm, uids.get(i)));
+        }
+    }
+
+    @Test
+    public void testLegacyFsmRebuiltAfterCrash() throws Exception {
+        recreate("legacy");
+        dm.insert(SUPER_XID, record(0, 100));
+        int fsmPgno = PageOne.getFsmHead(dm.pageOne);
+        byte[] staleFsm = snapshot(fsmPgno);
+        fillPages();
+
+        crash(Collections.singletonMap(fsmPgno, staleFsm));
+        checkFsm();
+    }
+
+    //正常关闭后映射完整, 打开时直接由映射重建PageIndex, 剩余空间足够的记录放入已有页面
+    @Test
+    public void testFsmLoadedAfterCleanClose() throws Exception {
+        fillPages();
+        int pages = dm.pc.getPageNumber();
+
+        reopen();
+        assertTrue(new FreeSpaceMap(dm.pc, dm.pageOne).load(new PageIndex(dm.pc.getPageSize())));
+        checkFsm();
+        long uid = dm.insert(SUPER_XID, record(100, 50));
+        assertTrue(pgno(uid) <= pages);
+        assertEquals(pages, dm.pc.getPageNumber());
+        assertArrayEquals(record(100, 50), readAll(dm, uid));
+    }
+}
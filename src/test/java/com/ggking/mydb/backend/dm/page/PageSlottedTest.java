@@ -0,0 +1,155 @@
+package com.ggking.mydb.backend.dm.page;
+
+import com.ggking.mydb.backend.dm.dataItem.DataItem;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class PageSlottedTest {
+
+    private static final int PAGE_SIZE = 8192;
+
+    private static Page newPage() {
+        return new PageImpl(2, PageSlotted.initRaw(PAGE_SIZE), null);
+    }
+
+    private static byte[] item(int i, int length) {
+        byte[] data = new byte[length];
+        Arrays.fill(data, (byte) i);
+        return DataItem.wrapDataItemRaw(data);
+    }
+
+    private static byte[] read(Page pg, int address) {
+        int off = PageSlotted.getOffset(pg, address);
+        assertTrue(off != PageSlotted.EMPTY_SLOT);
+        int len = 3 + (((pg.getData()[off + 1] & 0xFF) << 8) | (pg.getData()[off + 2] & 0xFF));
+        return Arrays.copyOfRange(pg.getData(), off, off + len);
+    }
+
+    private static void invalidate(Page pg, int address) {
+        pg.getData()[PageSlotted.getOffset(pg, address)] |= 1;
+    }
+
+    //按整理给出的区间改写页面, 与DataManager中的做法相同
+    private static void apply(Page pg, byte[] image, List<int[]> changes) {
+        for (int[] c : changes) {
+            PageX.recoverUpdate(pg, Arrays.copyOfRange(image, c[0], c[0] + c[1]), c[0]);
+        }
+    }
+
+    @Test
+    public void testInsertAndRead() {
+        Page pg = newPage();
+        int a = PageSlotted.insert(pg, item(1, 10));
+        int b = PageSlotted.insert(pg, item(2, 20));
+        assertEquals(0, a);
+        assertEquals(1, b);
+        assertArrayEquals(item(1, 10), read(pg, a));
+        assertArrayEquals(item(2, 20), read(pg, b));
+        assertEquals(PageSlotted.EMPTY_SLOT, PageSlotted.getOffset(pg, 5));
+    }
+
+    //整理后的空槽被单条插入复用, 代数加一, 旧的页内位置仍读到空槽; 槽目录不再增长
+    @Test
+    public void testSlotReuseAfterDefragment() {
+        Page pg = newPage();
+        int a = PageSlotted.insert(pg, item(1, 100));
+        int b = PageSlotted.insert(pg, item(2, 100));
+        int c = PageSlotted.insert(pg, item(3, 100));
+        invalidate(pg, b);
+        List<int[]> changes = new ArrayList<>();
+        byte[] image = PageSlotted.defragment(pg, slot -> true, slot -> false, changes);
+        assertNotNull(image);
+        apply(pg, image, changes);
+        assertEquals(PageSlotted.EMPTY_SLOT, PageSlotted.getOffset(pg, b));
+        assertArrayEquals(item(1, 100), read(pg, a));
+        assertArrayEquals(item(3, 100), read(pg, c));
+
+        int d = PageSlotted.insert(pg, item(4, 50));
+        assertEquals(b & 0xFFFF, d & 0xFFFF);
+        assertEquals(1, d >>> 16);
+        assertEquals(3, PageSlotted.getSlotCount(pg));
+        assertEquals(PageSlotted.EMPTY_SLOT, PageSlotted.getOffset(pg, b));
+        assertArrayEquals(item(4, 50), read(pg, d));
+    }
+
+    //批量插入总是使用新槽, 页内位置依次加一
+    @Test
+    public void testBatchUsesNewSlots() {
+        Page pg = newPage();
+        int a = PageSlotted.insert(pg, item(1, 10));
+        PageSlotted.insert(pg, item(2, 10));
+        invalidate(pg, a);
+        List<int[]> changes = new ArrayList<>();
+        apply(pg, PageSlotted.defragment(pg, slot -> true, slot -> false, changes), changes);
+        byte[] batch = new byte[26];
+        System.arraycopy(item(5, 10), 0, batch, 0, 13);
+        System.arraycopy(item(6, 10), 0, batch, 13, 13);
+        int first = PageSlotted.insert(pg, batch);
+        assertEquals(2, first);
+        assertArrayEquals(item(5, 10), read(pg, first));
+        assertArrayEquals(item(6, 10), read(pg, first + 1));
+    }
+
+    //仍被引用的记录留在原处且不在改写区间内, 其余记录绕开它紧凑排列
+    @Test
+    public void testDefragmentAroundPinned() {
+        Page pg = newPage();
+        int[] addrs = new int[6];
+        for (int i = 0; i < addrs.length; i++) {
+            addrs[i] = PageSlotted.insert(pg, item(i + 1, 200));
+        }
+        invalidate(pg, addrs[0]);
+        invalidate(pg, addrs[2]);
+        invalidate(pg, addrs[4]);
+        int pinnedSlot = addrs[3] & 0xFFFF;
+        int pinnedOff = PageSlotted.getOffset(pg, addrs[3]);
+        int usedBefore = PageSlotted.getUsedSpace(pg);
+
+        List<int[]> changes = new ArrayList<>();
+        byte[] image = PageSlotted.defragment(pg, slot -> true, slot -> slot == pinnedSlot, changes);
+        assertNotNull(image);
+        for (int[] c : changes) {
+            assertTrue(c[0] + c[1] <= pinnedOff || c[0] >= pinnedOff + 203);
+        }
+        apply(pg, image, changes);
+
+        assertEquals(pinnedOff, PageSlotted.getOffset(pg, addrs[3]));
+        assertTrue(PageSlotted.getUsedSpace(pg) < usedBefore);
+        assertArrayEquals(item(2, 200), read(pg, addrs[1]));
+        assertArrayEquals(item(4, 200), read(pg, addrs[3]));
+        assertArrayEquals(item(6, 200), read(pg, addrs[5]));
+        assertEquals(PageSlotted.EMPTY_SLOT, PageSlotted.getOffset(pg, addrs[0]));
+        assertEquals(PageSlotted.EMPTY_SLOT, PageSlotted.getOffset(pg, addrs[2]));
+        assertEquals(PageSlotted.EMPTY_SLOT, PageSlotted.getOffset(pg, addrs[4]));
+    }
+
+    //没有可释放的记录也没有可收回的空隙时不整理
+    @Test
+    public void testDefragmentNothing() {
+        Page pg = newPage();
+        PageSlotted.insert(pg, item(1, 10));
+        PageSlotted.insert(pg, item(2, 10));
+        List<int[]> changes = new ArrayList<>();
+        assertNull(PageSlotted.defragment(pg, slot -> true, slot -> false, changes));
+        assertTrue(changes.isEmpty());
+    }
+
+    //在空页上按插入日志的内容重做, 得到与插入相同的槽与记录
+    @Test
+    public void testRecoverInsert() {
+        Page pg = newPage();
+        byte[] raw = item(7, 30);
+        int address = PageSlotted.nextAddress(pg, raw);
+        int offset = PageSlotted.getDataStart(pg) - raw.length;
+        PageSlotted.insert(pg, raw);
+
+        Page redo = new PageImpl(2, new byte[PAGE_SIZE], null);
+        PageSlotted.recoverInsert(redo, raw, offset, address);
+        assertArrayEquals(pg.getData(), redo.getData());
+    }
+}
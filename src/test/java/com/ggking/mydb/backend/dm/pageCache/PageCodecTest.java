@@ -0,0 +1,111 @@
+package com.ggking.mydb.backend.dm.pageCache;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class PageCodecTest {
+
+    //模拟数据页: 页首FSO, 之后是重复度较高的记录, 尾部空闲区为0
+    private static byte[] dataPage(int pageSize) {
+        byte[] page = new byte[pageSize];
+        Random random = new Random(pageSize);
+        int used = pageSize / 2;
+        for (int i = 2; i < used; i++) {
+            page[i] = (byte) ('a' + random.nextInt(4));
+        }
+        page[0] = (byte) (used >>> 8);
+        page[1] = (byte) used;
+        return page;
+    }
+
+    //编码后写出的字节, 模拟从磁盘读回
+    private static byte[] storedBytes(ByteBuffer stored) {
+        byte[] raw = new byte[stored.remaining()];
+        stored.duplicate().get(raw);
+        return raw;
+    }
+
+    private static void assertRoundTrip(byte[] page) {
+        ByteBuffer stored = PageCodec.encode(page);
+        assertNotNull(stored);
+        assertTrue(stored.remaining() <= page.length - page.length / 8);
+        byte[] raw = storedBytes(stored);
+        assertTrue(PageCodec.isCompressed(raw, raw.length));
+        assertEquals(raw.length, PageCodec.storedLength(raw));
+        byte[] frame = new byte[page.length];
+        assertTrue(PageCodec.decode(raw, frame));
+        assertArrayEquals(page, frame);
+    }
+
+    @Test
+    public void testRoundTrip() {
+        assertRoundTrip(dataPage(PageCache.PAGE_SIZE));
+    }
+
+    @Test
+    public void testAllPageSizes() {
+        for (int size = PageCache.MIN_PAGE_SIZE; size <= PageCache.MAX_PAGE_SIZE; size <<= 1) {
+            assertRoundTrip(dataPage(size));
+        }
+    }
+
+    @Test
+    public void testAllZeroPage() {
+        byte[] page = new byte[PageCache.MAX_PAGE_SIZE];
+        ByteBuffer stored = PageCodec.encode(page);
+        assertNotNull(stored);
+        assertTrue(stored.remaining() < 1024);
+        assertRoundTrip(page);
+    }
+
+    @Test
+    public void testIncompressiblePage() {
+        byte[] page = new byte[PageCache.PAGE_SIZE];
+        new Random(1).nextBytes(page);
+        assertNull(PageCodec.encode(page));
+    }
+
+    @Test
+    public void testIncompressibleLargestPage() {
+        byte[] page = new byte[PageCache.MAX_PAGE_SIZE];
+        new Random(2).nextBytes(page);
+        assertNull(PageCodec.encode(page));
+    }
+
+    //同一线程反复编码复用缓冲区, 每次的结果只取决于当次输入
+    @Test
+    public void testReuseAcrossSizes() {
+        byte[] large = dataPage(PageCache.MAX_PAGE_SIZE);
+        byte[] small = dataPage(PageCache.MIN_PAGE_SIZE);
+        byte[] first = storedBytes(PageCodec.encode(small));
+        PageCodec.encode(large);
+        byte[] second = storedBytes(PageCodec.encode(small));
+        assertArrayEquals(first, second);
+        assertRoundTrip(large);
+    }
+
+    @Test
+    public void testCorruptedPage() {
+        byte[] page = dataPage(PageCache.PAGE_SIZE);
+        byte[] raw = storedBytes(PageCodec.encode(page));
+        byte[] truncated = Arrays.copyOf(raw, raw.length / 2);
+        assertFalse(PageCodec.decode(truncated, new byte[page.length]));
+    }
+
+    //未压缩的页面不会被误认为压缩页
+    @Test
+    public void testRawPageNotCompressed() {
+        byte[] page = dataPage(PageCache.PAGE_SIZE);
+        assertFalse(PageCodec.isCompressed(page, page.length));
+        byte[] special = new byte[PageCache.PAGE_SIZE];
+        special[0] = (byte) 0xFF;
+        special[1] = (byte) 0xFF;
+        assertFalse(PageCodec.isCompressed(special, special.length));
+        assertFalse(PageCodec.isCompressed(new byte[PageCache.PAGE_SIZE], PageCache.PAGE_SIZE));
+    }
+}
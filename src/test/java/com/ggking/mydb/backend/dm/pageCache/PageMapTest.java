@@ -0,0 +1,99 @@
+package com.ggking.mydb.backend.dm.pageCache;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import static org.junit.Assert.*;
+
+public class PageMapTest {
+
+    private Path dir;
+    private String dbPath;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("pmap");
+        dbPath = dir.resolve("test").toString();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(Paths.get(dbPath + PageMap.MAP_SUFFIX));
+        Files.deleteIfExists(dir);
+    }
+
+    @Test
+    public void testSaveAndLoad() {
+        PageMap map = new PageMap(dbPath);
+        map.set(2, 100);
+        map.set(3, 0);
+        map.set(7, 4000);
+        // 接近0xFFFF的长度超出short的正数范围, 读回时按无符号数处理
+        map.set(9, 0xFFF0);
+        map.save();
+        assertTrue(Files.exists(Paths.get(dbPath + PageMap.MAP_SUFFIX)));
+
+        PageMap loaded = new PageMap(dbPath);
+        loaded.load();
+        assertEquals(0, loaded.get(1));
+        assertEquals(100, loaded.get(2));
+        assertEquals(0, loaded.get(3));
+        assertEquals(4000, loaded.get(7));
+        assertEquals(0xFFF0, loaded.get(9));
+        assertEquals(0, loaded.get(1000));
+    }
+
+    //页号按无符号数处理, 超过2^31的页号同样能记录与读回
+    @Test
+    public void testHighPageNumbers() {
+        int high = (int) ((1L << 31) + 5);
+        int last = (int) PageCache.MAX_PAGES;
+        PageMap map = new PageMap(dbPath);
+        map.set(high, 1000);
+        map.set(last, 2000);
+        assertEquals(1000, map.get(high));
+        assertEquals(2000, map.get(last));
+        assertEquals(0, map.get(high + 1));
+        assertEquals(0, map.get(Integer.MAX_VALUE));
+        map.save();
+
+        PageMap loaded = new PageMap(dbPath);
+        loaded.load();
+        assertEquals(1000, loaded.get(high));
+        assertEquals(2000, loaded.get(last));
+        assertEquals(0, loaded.get(2));
+    }
+
+    @Test
+    public void testOverwrite() {
+        PageMap map = new PageMap(dbPath);
+        map.set(5, 300);
+        map.set(5, 0);
+        map.save();
+        PageMap loaded = new PageMap(dbPath);
+        loaded.load();
+        assertEquals(0, loaded.get(5));
+    }
+
+    @Test
+    public void testMissingFile() {
+        PageMap map = new PageMap(dbPath);
+        map.load();
+        assertEquals(0, map.get(2));
+    }
+
+    //长度与页数不符的文件视为过时, 全部整页读取
+    @Test
+    public void testCorruptedFile() throws IOException {
+        Files.write(Paths.get(dbPath + PageMap.MAP_SUFFIX), new byte[]{0, 0, 0, 4, 0, 100});
+        PageMap map = new PageMap(dbPath);
+        map.load();
+        assertEquals(0, map.get(0));
+    }
+}
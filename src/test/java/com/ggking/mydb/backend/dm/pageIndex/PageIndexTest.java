@@ -0,0 +1,110 @@
+package com.ggking.mydb.backend.dm.pageIndex;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+public class PageIndexTest {
+
+    private static final int PAGE_SIZE = 8192;
+
+    @Test
+    public void testSelectAndAdd() {
+        PageIndex pIndex = new PageIndex(PAGE_SIZE);
+        pIndex.add(2, 4000);
+        PageInfo pi = pIndex.select(1000);
+        assertNotNull(pi);
+        assertEquals(2, pi.pgno);
+        assertNull(pIndex.select(1000));
+        pIndex.add(2, 3000);
+        assertEquals(2, pIndex.select(1000).pgno);
+    }
+
+    //整理重复登记同一页面, 索引中只保留一项
+    @Test
+    public void testOfferReplacesEntry() {
+        PageIndex pIndex = new PageIndex(PAGE_SIZE);
+        pIndex.add(3, 1000);
+        for (int i = 0; i < 100; i++) {
+            pIndex.offer(3, 2000 + i * 10);
+        }
+        PageInfo pi = pIndex.select(100);
+        assertNotNull(pi);
+        assertEquals(3, pi.pgno);
+        assertEquals(2990, pi.freeSpace);
+        assertNull(pIndex.select(100));
+    }
+
+    //被取走的页面由取走者放回, 整理时不再登记
+    @Test
+    public void testOfferSkipsTakenPage() {
+        PageIndex pIndex = new PageIndex(PAGE_SIZE);
+        pIndex.add(4, 1000);
+        PageInfo pi = pIndex.select(100);
+        assertEquals(4, pi.pgno);
+        pIndex.offer(4, 5000);
+        assertNull(pIndex.select(100));
+        pIndex.add(4, 6000);
+        assertEquals(6000, pIndex.select(100).freeSpace);
+    }
+
+    @Test
+    public void testOfferNewPage() {
+        PageIndex pIndex = new PageIndex(PAGE_SIZE);
+        pIndex.offer(5, 4000);
+        assertEquals(5, pIndex.select(3000).pgno);
+    }
+
+    //并发取放与整理登记时, 同一页面不会同时被两个线程取走
+    @Test
+    public void testNoDoubleSelect() throws Exception {
+        PageIndex pIndex = new PageIndex(PAGE_SIZE);
+        int pages = 16;
+        for (int i = 2; i < 2 + pages; i++) {
+            pIndex.add(i, 4000);
+        }
+        Set<Integer> held = ConcurrentHashMap.newKeySet();
+        AtomicBoolean doubled = new AtomicBoolean(false);
+        CountDownLatch done = new CountDownLatch(6);
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            threads.add(new Thread(() -> {
+                for (int i = 0; i < 100000; i++) {
+                    PageInfo pi = pIndex.select(100);
+                    if (pi == null) {
+                        continue;
+                    }
+                    if (!held.add(pi.pgno)) {
+                        doubled.set(true);
+                    }
+                    held.remove(pi.pgno);
+                    pIndex.add(pi.pgno, 4000);
+                }
+                done.countDown();
+            }));
+        }
+        for (int t = 0; t < 2; t++) {
+            threads.add(new Thread(() -> {
+                for (int i = 0; i < 100000; i++) {
+                    pIndex.offer(2 + i % pages, 1000 + (i % 7) * 500);
+                }
+                done.countDown();
+            }));
+        }
+        threads.forEach(Thread::start);
+        done.await();
+        assertFalse(doubled.get());
+        int count = 0;
+        while (pIndex.select(100) != null) {
+            count++;
+        }
+        assertEquals(pages, count);
+    }
+}